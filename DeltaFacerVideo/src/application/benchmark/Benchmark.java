@@ -0,0 +1,131 @@
+package application.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import org.bytedeco.javacpp.Pointer;
+
+/**
+ * Small benchmark harness. An operation is run for a number of warmup
+ * iterations so the JIT has compiled it, then every measured iteration is
+ * timed on its own, which gives latency percentiles besides the throughput.
+ * Heap allocation is read from the thread's allocation counter; native
+ * memory is the growth of the process' physical memory over the measured
+ * iterations, so it shows memory that is kept or leaked rather than memory
+ * that is allocated and freed again.
+ */
+public class Benchmark {
+
+	public interface Operation {
+		void run() throws Exception;
+	}
+
+	public static class Result {
+		private final String name;
+		private final long[] nanos;
+		private final long totalNanos;
+		private final long heapBytes;
+		private final long nativeBytes;
+
+		Result(String name, long[] nanos, long totalNanos, long heapBytes, long nativeBytes) {
+			this.name = name;
+			this.nanos = nanos;
+			this.totalNanos = totalNanos;
+			this.heapBytes = heapBytes;
+			this.nativeBytes = nativeBytes;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return operations per second
+		 */
+		public double getThroughput() {
+			return totalNanos == 0 ? 0 : nanos.length / (totalNanos / 1e9);
+		}
+
+		/**
+		 * @param p
+		 *            percentile between 0 and 100
+		 * @return latency of the percentile in nanoseconds
+		 */
+		public long getPercentile(double p) {
+			int index = (int) Math.ceil(p / 100 * nanos.length) - 1;
+			return nanos[Math.max(0, Math.min(nanos.length - 1, index))];
+		}
+
+		/**
+		 * @return heap bytes allocated per operation, -1 if the JVM can't tell
+		 */
+		public long getHeapBytesPerOperation() {
+			return heapBytes < 0 ? -1 : heapBytes / nanos.length;
+		}
+
+		/**
+		 * @return growth of the process memory over all measured operations
+		 */
+		public long getNativeBytes() {
+			return nativeBytes;
+		}
+
+		public static String header() {
+			return String.format("%-40s %10s %10s %10s %10s %10s %12s %12s", "Benchmark", "ops/s", "p50 ms",
+					"p90 ms", "p99 ms", "max ms", "heap B/op", "native KB");
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-40s %10.1f %10.3f %10.3f %10.3f %10.3f %12d %12d", name, getThroughput(),
+					getPercentile(50) / 1e6, getPercentile(90) / 1e6, getPercentile(99) / 1e6,
+					nanos[nanos.length - 1] / 1e6, getHeapBytesPerOperation(), nativeBytes / 1024);
+		}
+	}
+
+	private final int warmupIterations;
+	private final int measureIterations;
+
+	public Benchmark(int warmupIterations, int measureIterations) {
+		this.warmupIterations = warmupIterations;
+		this.measureIterations = Math.max(1, measureIterations);
+	}
+
+	/**
+	 * Runs the operation and prints its result row.
+	 */
+	public Result run(String name, Operation operation) throws Exception {
+		for (int i = 0; i < warmupIterations; i++) {
+			operation.run();
+		}
+		System.gc();
+
+		long[] nanos = new long[measureIterations];
+		long heapBefore = allocatedBytes();
+		long nativeBefore = Pointer.physicalBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < measureIterations; i++) {
+			long operationStart = System.nanoTime();
+			operation.run();
+			nanos[i] = System.nanoTime() - operationStart;
+		}
+		long totalNanos = System.nanoTime() - start;
+		long heapAfter = allocatedBytes();
+		long nativeBytes = Pointer.physicalBytes() - nativeBefore;
+
+		Arrays.sort(nanos);
+		Result result = new Result(name, nanos, totalNanos, heapBefore < 0 ? -1 : heapAfter - heapBefore,
+				nativeBytes);
+		System.out.println(result);
+		return result;
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,96 @@
+package application.benchmark;
+
+import static org.bytedeco.javacpp.opencv_imgproc.COLOR_BGRA2GRAY;
+import static org.bytedeco.javacpp.opencv_imgproc.cvtColor;
+import static org.bytedeco.javacpp.opencv_imgproc.equalizeHist;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+
+import application.facedetection.FaceRecognizer;
+
+/**
+ * Measures the cost per frame of getting from the video to the equalized gray
+ * image detection works on: colour decoding followed by a copy of the frame,
+ * the gray conversion and equalization, the way the pipeline has always
+ * done it, against decoding the gray plane only, where the copy is a third
+ * of the size and there is nothing to convert. Both are measured at the size
+ * of the video and at VIDEO_WIDTH x VIDEO_HEIGHT.
+ *
+ * Usage: DecodeBenchmark [video file] [max frames]
+ */
+public class DecodeBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		FaceRecognizer.loadApplicationProperties();
+		String videoFile = args.length > 0 ? args[0] : FaceRecognizer.properties.getProperty("VIDEO_FILE");
+		int maxFrames = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+		int width = Integer.parseInt(FaceRecognizer.properties.getProperty("VIDEO_WIDTH", "0").trim());
+		int height = Integer.parseInt(FaceRecognizer.properties.getProperty("VIDEO_HEIGHT", "0").trim());
+
+		System.out.println(String.format("%-28s %8s %10s %10s %10s", "mode", "frames", "decode ms", "convert ms",
+				"total ms"));
+		for (boolean scaled : new boolean[] { false, true }) {
+			if (scaled && (width <= 0 || height <= 0)) {
+				continue;
+			}
+			for (boolean gray : new boolean[] { false, true }) {
+				run(videoFile, maxFrames, gray, scaled ? width : 0, scaled ? height : 0);
+			}
+		}
+	}
+
+	private static void run(String videoFile, int maxFrames, boolean gray, int width, int height)
+			throws FrameGrabber.Exception {
+		OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+		long decodeNanos = 0;
+		long convertNanos = 0;
+		int frames = 0;
+		try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(videoFile);
+				Mat frameCopy = new Mat();
+				Mat grayFrame = new Mat()) {
+			if (width > 0 && height > 0) {
+				grabber.setImageWidth(width);
+				grabber.setImageHeight(height);
+			}
+			if (gray) {
+				grabber.setImageMode(FrameGrabber.ImageMode.GRAY);
+			}
+			grabber.start();
+			while (frames < maxFrames) {
+				long start = System.nanoTime();
+				Frame frame = grabber.grabImage();
+				if (frame == null || frame.image == null) {
+					break;
+				}
+				long decoded = System.nanoTime();
+				// the converter wraps the frame buffer, the copy is the one the
+				// pipeline makes to hand the frame on
+				converter.convert(frame).copyTo(frameCopy);
+				if (gray) {
+					equalizeHist(frameCopy, grayFrame);
+				} else {
+					cvtColor(frameCopy, grayFrame, COLOR_BGRA2GRAY);
+					equalizeHist(grayFrame, grayFrame);
+				}
+				long converted = System.nanoTime();
+				decodeNanos += decoded - start;
+				convertNanos += converted - decoded;
+				frames++;
+			}
+			grabber.stop();
+		}
+
+		String mode = String.format("%s, %s", gray ? "gray" : "colour",
+				width > 0 ? width + "x" + height : "video size");
+		if (frames == 0) {
+			System.out.println(String.format("%-28s no frames in %s", mode, videoFile));
+			return;
+		}
+		System.out.println(String.format("%-28s %8d %10.3f %10.3f %10.3f", mode, frames, decodeNanos / 1e6 / frames,
+				convertNanos / 1e6 / frames, (decodeNanos + convertNanos) / 1e6 / frames));
+	}
+}
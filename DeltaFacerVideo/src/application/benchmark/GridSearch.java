@@ -0,0 +1,141 @@
+package application.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import application.facedetection.FaceRecognizer;
+import application.facerecognizer.CrossValidator;
+import application.facerecognizer.FaceDatasetLoader;
+import application.facerecognizer.RecognizerType;
+
+/**
+ * Tunes the recognizers: cross-validates every combination of the
+ * parameters below on the whole data set, on all cores, and prints the
+ * accuracy against the prediction time of each, fastest first, followed by
+ * the fastest one that reaches TUNE_TARGET_ACCURACY.
+ *
+ * The grid comes from application.properties, comma separated lists:
+ * TUNE_TYPES, TUNE_PCA_COMPONENTS and TUNE_LDA_COMPONENTS (0 for all),
+ * TUNE_LBPH_RADIUS, TUNE_LBPH_NEIGHBORS and TUNE_LBPH_GRID (cells along
+ * each side) for BPH and MBPH, and TUNE_PCA_THRESHOLDS, TUNE_LDA_THRESHOLDS
+ * and TUNE_LBPH_THRESHOLDS; TUNE_FOLDS sets k.
+ *
+ * Usage: GridSearch [face folder]
+ */
+public class GridSearch {
+
+	public static void main(String[] args) throws Exception {
+		FaceRecognizer.loadApplicationProperties();
+		String faceFolder = args.length > 0 ? args[0] : FaceRecognizer.properties.getProperty("TRAINING_DATA");
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		// every face is decoded once and shared by all folds and configurations
+		List<String> classLabels;
+		List<Mat> images = new ArrayList<>();
+		List<Integer> labels = new ArrayList<>();
+		try (FaceDatasetLoader loader = new FaceDatasetLoader(cores)) {
+			FaceDatasetLoader.Dataset dataset = loader.scan(faceFolder);
+			classLabels = dataset.getClassLabels();
+			List<FaceDatasetLoader.Sample> samples = new ArrayList<>(dataset.getTrainingSamples());
+			samples.addAll(dataset.getTestSamples());
+			loader.decode(samples, FaceDatasetLoader.DEFAULT_BATCH_SIZE, (batch, batchLabels) -> {
+				for (int i = 0; i < batch.size(); i++) {
+					images.add(batch.get(i).clone());
+					labels.add(batchLabels.get(i));
+				}
+			});
+			loader.printStatistics();
+		}
+		if (images.isEmpty()) {
+			System.out.println("No images in " + faceFolder);
+			return;
+		}
+
+		List<CrossValidator.Configuration> configurations = configurations();
+		int folds = intProperty("TUNE_FOLDS", 5);
+		System.out.println(String.format("%d configurations, %d folds, %d images of %d classes, %d threads",
+				configurations.size(), folds, images.size(), classLabels.size(), cores));
+		CrossValidator validator = new CrossValidator(classLabels, images, labels, folds);
+		List<CrossValidator.Result> results = validator.evaluate(configurations, cores);
+
+		System.out.println();
+		System.out.println(CrossValidator.Result.header());
+		for (CrossValidator.Result result : results) {
+			System.out.println(result);
+		}
+		double target = Double.parseDouble(FaceRecognizer.properties.getProperty("TUNE_TARGET_ACCURACY", "0.9"));
+		CrossValidator.Result fastest = null;
+		for (CrossValidator.Result result : results) {
+			if (result.getAccuracy() >= target) {
+				fastest = result;
+				break;
+			}
+		}
+		System.out.println();
+		System.out.println(fastest == null
+				? String.format("No configuration reaches %.1f%% accuracy", 100 * target)
+				: String.format("Fastest configuration with at least %.1f%% accuracy: %s", 100 * target,
+						fastest.toString().trim().replaceAll("\\s+", " ")));
+
+		for (Mat image : images) {
+			image.release();
+		}
+	}
+
+	private static List<CrossValidator.Configuration> configurations() {
+		List<CrossValidator.Configuration> configurations = new ArrayList<>();
+		for (String name : listProperty("TUNE_TYPES", "PCA,LDA,BPH,MBPH")) {
+			RecognizerType type = RecognizerType.valueOf(name);
+			if (type == RecognizerType.PCA || type == RecognizerType.LDA) {
+				List<Double> thresholds = numbers(listProperty("TUNE_" + type + "_THRESHOLDS", ""));
+				for (double components : numbers(listProperty("TUNE_" + type + "_COMPONENTS", "0"))) {
+					Map<String, Double> parameters = new LinkedHashMap<>();
+					parameters.put("num_components", components);
+					configurations.add(new CrossValidator.Configuration(type, parameters, thresholds));
+				}
+				continue;
+			}
+			List<Double> thresholds = numbers(listProperty("TUNE_LBPH_THRESHOLDS", ""));
+			for (double radius : numbers(listProperty("TUNE_LBPH_RADIUS", "1"))) {
+				for (double neighbors : numbers(listProperty("TUNE_LBPH_NEIGHBORS", "8"))) {
+					for (double grid : numbers(listProperty("TUNE_LBPH_GRID", "8"))) {
+						Map<String, Double> parameters = new LinkedHashMap<>();
+						parameters.put("radius", radius);
+						parameters.put("neighbors", neighbors);
+						parameters.put("grid_x", grid);
+						parameters.put("grid_y", grid);
+						configurations.add(new CrossValidator.Configuration(type, parameters, thresholds));
+					}
+				}
+			}
+		}
+		return configurations;
+	}
+
+	private static List<String> listProperty(String key, String defaultValue) {
+		List<String> values = new ArrayList<>();
+		for (String value : FaceRecognizer.properties.getProperty(key, defaultValue).split(",")) {
+			if (!value.trim().isEmpty()) {
+				values.add(value.trim());
+			}
+		}
+		return values;
+	}
+
+	private static List<Double> numbers(List<String> values) {
+		List<Double> numbers = new ArrayList<>();
+		for (String value : values) {
+			numbers.add(Double.parseDouble(value));
+		}
+		return numbers;
+	}
+
+	private static int intProperty(String key, int defaultValue) {
+		String value = FaceRecognizer.properties.getProperty(key, "").trim();
+		return value.isEmpty() ? defaultValue : Integer.parseInt(value);
+	}
+}
@@ -0,0 +1,244 @@
+package application.benchmark;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+import static org.bytedeco.javacpp.opencv_imgcodecs.imwrite;
+import static org.bytedeco.javacpp.opencv_imgproc.COLOR_BGRA2GRAY;
+import static org.bytedeco.javacpp.opencv_imgproc.COLOR_GRAY2BGRA;
+import static org.bytedeco.javacpp.opencv_imgproc.circle;
+import static org.bytedeco.javacpp.opencv_imgproc.cvtColor;
+import static org.bytedeco.javacpp.opencv_imgproc.equalizeHist;
+import static org.bytedeco.javacpp.opencv_imgproc.line;
+import static org.bytedeco.javacpp.opencv_imgproc.resize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Point;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacpp.opencv_core.RectVector;
+import org.bytedeco.javacpp.opencv_core.Scalar;
+import org.bytedeco.javacpp.opencv_core.Size;
+
+import application.facedetection.FaceRecognizer;
+import application.facerecognizer.DeltaFacer;
+import application.facerecognizer.FaceDatasetLoader;
+import application.facerecognizer.FacePreprocessor;
+import application.facerecognizer.RecognizerType;
+
+/**
+ * Benchmarks the hot paths of the video pipeline without a display or a
+ * video: the grayscale / equalize step, face detection and cropping, eye
+ * alignment, and prediction for every recognizer type. Frames are composed
+ * at several resolutions with several faces on a noise background; the
+ * faces come from the given data set, or are drawn if there is none, in
+ * which case the recognizers are trained on a drawn data set too.
+ *
+ * Usage: HotPathBenchmark [face folder]
+ *
+ * The cascades are the ones in application.properties. Iterations are set
+ * with -Dbenchmark.warmup and -Dbenchmark.iterations.
+ */
+public class HotPathBenchmark {
+
+	private static final int[][] RESOLUTIONS = { { 320, 240 }, { 640, 480 }, { 1280, 720 } };
+	private static final int[] FACE_COUNTS = { 1, 4, 8 };
+	private static final Size TARGET_SIZE = new Size(257, 300);
+	private static final double PADDING = 0.3;
+	private static final int SYNTHETIC_CLASSES = 4;
+	private static final int SYNTHETIC_IMAGES_PER_CLASS = 10;
+
+	public static void main(String[] args) throws Exception {
+		FaceRecognizer.loadApplicationProperties();
+		FacePreprocessor preprocessor = new FacePreprocessor(FaceRecognizer.properties.getProperty("FACE_CLASSIFIER"),
+				FaceRecognizer.properties.getProperty("EYE_CLASSIFIER"));
+		Benchmark benchmark = new Benchmark(Integer.getInteger("benchmark.warmup", 20),
+				Integer.getInteger("benchmark.iterations", 200));
+
+		Path syntheticFolder = null;
+		String faceFolder;
+		if (args.length > 0) {
+			faceFolder = args[0];
+		} else {
+			syntheticFolder = writeSyntheticDataset();
+			faceFolder = syntheticFolder.toString();
+		}
+
+		try {
+			List<Mat> faces = readFaces(faceFolder, 8);
+			System.out.println(Benchmark.Result.header());
+
+			for (int[] resolution : RESOLUTIONS) {
+				try (Mat gray = composeFrame(resolution[0], resolution[1], faces, 1); Mat bgra = new Mat();
+						Mat converted = new Mat()) {
+					cvtColor(gray, bgra, COLOR_GRAY2BGRA);
+					benchmark.run(String.format("gray+equalize %dx%d", resolution[0], resolution[1]), () -> {
+						cvtColor(bgra, converted, COLOR_BGRA2GRAY);
+						equalizeHist(converted, converted);
+					});
+				}
+			}
+
+			List<Mat> crops = new ArrayList<>();
+			for (int[] resolution : RESOLUTIONS) {
+				for (int faceCount : FACE_COUNTS) {
+					try (Mat frame = composeFrame(resolution[0], resolution[1], faces, faceCount);
+							RectVector faceRects = new RectVector()) {
+						List<Mat> found = preprocessor.extractFaces(faceRects, frame, TARGET_SIZE, PADDING);
+						String name = String.format("extractFaces %dx%d %d/%d found", resolution[0], resolution[1],
+								found.size(), faceCount);
+						if (crops.isEmpty()) {
+							crops.addAll(found);
+						} else {
+							release(found);
+						}
+						benchmark.run(name, () -> release(preprocessor.extractFaces(faceRects, frame, TARGET_SIZE,
+								PADDING)));
+					}
+				}
+			}
+
+			if (crops.isEmpty()) {
+				// nothing was detected, align the source faces instead
+				for (Mat face : faces) {
+					Mat crop = new Mat();
+					resize(face, crop, TARGET_SIZE);
+					crops.add(crop);
+				}
+			}
+			int[] aligned = { 0, 0 };
+			benchmark.run(String.format("alignFace %dx%d", TARGET_SIZE.width(), TARGET_SIZE.height()), () -> {
+				Mat crop = crops.get(aligned[1]++ % crops.size());
+				try {
+					preprocessor.alignFace(crop).release();
+					aligned[0]++;
+				} catch (Exception e) {
+					// fewer than two eyes found, as in the pipeline
+				}
+			});
+			System.out.println(String.format("alignFace found two eyes in %d of %d calls", aligned[0], aligned[1]));
+			release(crops);
+
+			benchmarkRecognizers(benchmark, faceFolder);
+			release(faces);
+		} finally {
+			if (syntheticFolder != null) {
+				deleteRecursively(syntheticFolder);
+			}
+		}
+	}
+
+	private static void benchmarkRecognizers(Benchmark benchmark, String faceFolder) throws Exception {
+		List<Mat> testImages = new ArrayList<>();
+		try (FaceDatasetLoader loader = new FaceDatasetLoader()) {
+			for (FaceDatasetLoader.Sample sample : loader.scan(faceFolder).getTestSamples()) {
+				testImages.add(sample.read());
+			}
+		}
+		if (testImages.isEmpty()) {
+			System.out.println("No test images to benchmark the recognizers with.");
+			return;
+		}
+
+		for (RecognizerType type : RecognizerType.values()) {
+			DeltaFacer recognizer = new DeltaFacer(type);
+			recognizer.train(faceFolder);
+			int[] next = { 0 };
+			benchmark.run("predictLabel " + type.getName(),
+					() -> recognizer.predictLabel(testImages.get(next[0]++ % testImages.size())));
+		}
+		release(testImages);
+	}
+
+	/**
+	 * @return up to max faces, the first image of every class
+	 */
+	private static List<Mat> readFaces(String faceFolder, int max) throws IOException {
+		List<Mat> faces = new ArrayList<>();
+		try (FaceDatasetLoader loader = new FaceDatasetLoader()) {
+			int lastLabel = -1;
+			for (FaceDatasetLoader.Sample sample : loader.scan(faceFolder).getTrainingSamples()) {
+				if (sample.getLabel() != lastLabel && faces.size() < max) {
+					faces.add(sample.read());
+					lastLabel = sample.getLabel();
+				}
+			}
+		}
+		return faces;
+	}
+
+	/**
+	 * Lays the faces out on a grid over a noise background.
+	 */
+	private static Mat composeFrame(int width, int height, List<Mat> faces, int faceCount) {
+		Mat frame = new Mat(height, width, CV_8UC1);
+		byte[] noise = new byte[width * height];
+		new Random(faceCount).nextBytes(noise);
+		frame.data().put(noise);
+
+		int columns = (int) Math.ceil(Math.sqrt(faceCount));
+		int rows = (faceCount + columns - 1) / columns;
+		int cellWidth = width / columns;
+		int cellHeight = height / rows;
+		int faceHeight = (int) (cellHeight * 0.8);
+		int faceWidth = Math.min((int) (cellWidth * 0.8), faceHeight * TARGET_SIZE.width() / TARGET_SIZE.height());
+		for (int i = 0; i < faceCount; i++) {
+			int x = (i % columns) * cellWidth + (cellWidth - faceWidth) / 2;
+			int y = (i / columns) * cellHeight + (cellHeight - faceHeight) / 2;
+			try (Mat cell = new Mat(frame, new Rect(x, y, faceWidth, faceHeight))) {
+				// the cell is a view of the frame, so this draws into the frame
+				resize(faces.get(i % faces.size()), cell, cell.size());
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * Writes a data set of drawn faces, one class per eye spacing, to a
+	 * temporary folder.
+	 */
+	private static Path writeSyntheticDataset() throws IOException {
+		Path folder = Files.createTempDirectory("faces");
+		Random random = new Random(42);
+		for (int c = 0; c < SYNTHETIC_CLASSES; c++) {
+			Path classFolder = Files.createDirectory(folder.resolve("person" + c));
+			for (int i = 0; i < SYNTHETIC_IMAGES_PER_CLASS; i++) {
+				try (Mat face = drawFace(100, 116, 0.2 + 0.05 * c, random)) {
+					imwrite(classFolder.resolve(String.format("%02d.png", i)).toString(), face);
+				}
+			}
+		}
+		return folder;
+	}
+
+	private static Mat drawFace(int width, int height, double eyeSpacing, Random random) {
+		Mat face = new Mat(height, width, CV_8UC1, Scalar.all(60 + random.nextInt(20)));
+		int cx = width / 2 + random.nextInt(5) - 2;
+		int cy = height / 2 + random.nextInt(5) - 2;
+		int eyeOffset = (int) (eyeSpacing * width);
+		circle(face, new Point(cx, cy), (int) (width * 0.4), Scalar.all(190), -1, 8, 0);
+		circle(face, new Point(cx - eyeOffset, cy - height / 8), width / 12, Scalar.all(30), -1, 8, 0);
+		circle(face, new Point(cx + eyeOffset, cy - height / 8), width / 12, Scalar.all(30), -1, 8, 0);
+		line(face, new Point(cx - width / 6, cy + height / 5), new Point(cx + width / 6, cy + height / 5),
+				Scalar.all(50), 3, 8, 0);
+		return face;
+	}
+
+	private static void release(List<Mat> mats) {
+		for (Mat mat : mats) {
+			mat.release();
+		}
+	}
+
+	private static void deleteRecursively(Path folder) throws IOException {
+		try (Stream<Path> paths = Files.walk(folder)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package application.benchmark;
+
+import java.util.List;
+
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import application.facerecognizer.DeltaFacer;
+import application.facerecognizer.FaceDatasetLoader;
+import application.facerecognizer.Prediction;
+import application.facerecognizer.RecognizerType;
+
+/**
+ * Compares the memory mapped LBPH gallery (MBPH) with OpenCV's own LBPH
+ * recognizer (BPH) on the same data set: training time, memory, prediction
+ * latency, accuracy and how often both agree.
+ *
+ * Usage: LbphGalleryBenchmark &lt;face folder&gt;
+ */
+public class LbphGalleryBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: LbphGalleryBenchmark <face folder>");
+			return;
+		}
+		String faceFolder = args[0];
+
+		DeltaFacer nativeRecognizer = train(RecognizerType.BPH, faceFolder);
+		DeltaFacer galleryRecognizer = train(RecognizerType.MBPH, faceFolder);
+
+		List<FaceDatasetLoader.Sample> testSamples;
+		try (FaceDatasetLoader loader = new FaceDatasetLoader()) {
+			testSamples = loader.scan(faceFolder).getTestSamples();
+		}
+
+		long nativeNanos = 0;
+		long galleryNanos = 0;
+		int nativeCorrect = 0;
+		int galleryCorrect = 0;
+		int agreed = 0;
+		for (FaceDatasetLoader.Sample sample : testSamples) {
+			try (Mat image = sample.read()) {
+				long start = System.nanoTime();
+				Prediction nativePrediction = nativeRecognizer.predict(image);
+				nativeNanos += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				Prediction galleryPrediction = galleryRecognizer.predict(image);
+				galleryNanos += System.nanoTime() - start;
+
+				nativeCorrect += nativePrediction.getLabelIndex() == sample.getLabel() ? 1 : 0;
+				galleryCorrect += galleryPrediction.getLabelIndex() == sample.getLabel() ? 1 : 0;
+				agreed += nativePrediction.getLabelIndex() == galleryPrediction.getLabelIndex() ? 1 : 0;
+			}
+		}
+
+		int n = Math.max(1, testSamples.size());
+		System.out.println(String.format("%d test images", testSamples.size()));
+		System.out.println(String.format("BPH  (native):  %.3f ms/face, accuracy %.3f", nativeNanos / 1e6 / n,
+				(double) nativeCorrect / n));
+		System.out.println(String.format("MBPH (gallery): %.3f ms/face, accuracy %.3f", galleryNanos / 1e6 / n,
+				(double) galleryCorrect / n));
+		System.out.println(String.format("Same label for %.1f%% of the faces", 100.0 * agreed / n));
+	}
+
+	private static DeltaFacer train(RecognizerType type, String faceFolder) {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+		long nativeBefore = Pointer.physicalBytes();
+		long start = System.nanoTime();
+
+		DeltaFacer recognizer = new DeltaFacer(type);
+		recognizer.train(faceFolder);
+
+		long nanos = System.nanoTime() - start;
+		System.gc();
+		long heap = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+		long physical = Pointer.physicalBytes() - nativeBefore;
+		System.out.println(String.format("%s trained in %.2f s, heap %+d KB, process memory %+d KB", type.getName(),
+				nanos / 1e9, heap / 1024, physical / 1024));
+		return recognizer;
+	}
+}
@@ -0,0 +1,130 @@
+package application.benchmark;
+
+import static org.bytedeco.javacpp.opencv_core.mean;
+import static org.bytedeco.javacpp.opencv_imgproc.COLOR_BGRA2GRAY;
+import static org.bytedeco.javacpp.opencv_imgproc.cvtColor;
+import static org.bytedeco.javacpp.opencv_imgproc.equalizeHist;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacpp.opencv_core.RectVector;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+
+import application.facedetection.FaceRecognizer;
+import application.facerecognizer.FacePreprocessor;
+import application.facerecognizer.FaceTracker;
+import application.facerecognizer.MotionGate;
+
+/**
+ * Checks that the motion gate finds a face that appears in a changed
+ * region. Takes the first frame of the video (or image) in which a full
+ * detection finds faces, blanks the faces out to make a background, shows
+ * the gate that background for a few frames and then the frame itself, which
+ * the gate scans only where the faces appeared. Every face of the full
+ * detection has to be among the faces the gate reports.
+ *
+ * Uses the DETECTION_* and MOTION_* settings of application.properties, but
+ * no regions of interest or ignored regions. Exits with 1 if a face is
+ * missed.
+ *
+ * Usage: MotionGateCheck [video or image file]
+ */
+public class MotionGateCheck {
+
+	private static final int MAX_FRAMES = 300;
+	private static final int BACKGROUND_FRAMES = 10;
+	private static final double MIN_OVERLAP = 0.5;
+
+	public static void main(String[] args) throws Exception {
+		FaceRecognizer.loadApplicationProperties();
+		String file = args.length > 0 ? args[0] : FaceRecognizer.properties.getProperty("VIDEO_FILE");
+
+		FacePreprocessor detector = new FacePreprocessor(FaceRecognizer.properties.getProperty("FACE_CLASSIFIER"),
+				FaceRecognizer.properties.getProperty("EYE_CLASSIFIER"));
+		detector.setDetectionSettings(FaceRecognizer.readDetectionSettings());
+		System.out.println("Detection: " + detector.getDetectionSettings());
+
+		try (Mat scene = new Mat(); RectVector expected = new RectVector()) {
+			if (!findFaces(file, detector, scene, expected)) {
+				System.out.println("No faces in the first " + MAX_FRAMES + " frames of " + file);
+				return;
+			}
+
+			try (Mat background = scene.clone(); RectVector found = new RectVector()) {
+				for (int i = 0; i < expected.size(); i++) {
+					try (Rect face = expected.get(i); Mat roi = new Mat(background, face)) {
+						roi.put(mean(roi));
+					}
+				}
+
+				// never due for a full detection after the first frame
+				MotionGate gate = new MotionGate(
+						Double.parseDouble(FaceRecognizer.properties.getProperty("MOTION_THRESHOLD", "25")),
+						Double.parseDouble(FaceRecognizer.properties.getProperty("MOTION_MIN_AREA", "0.001")),
+						Integer.MAX_VALUE, Collections.<Rect>emptyList(), Collections.<Rect>emptyList());
+				for (int i = 0; i < BACKGROUND_FRAMES; i++) {
+					gate.detect(background, found, detector);
+				}
+				gate.detect(scene, found, detector);
+
+				List<String> missed = missed(expected, found);
+				System.out.println(String.format("%d faces expected, %d found by the gate", expected.size(),
+						found.size()));
+				if (!missed.isEmpty()) {
+					System.out.println("FAILED, missed the faces at " + String.join(", ", missed));
+					System.exit(1);
+				}
+				System.out.println("OK");
+			}
+		}
+	}
+
+	/**
+	 * Grabs frames until a full detection finds faces.
+	 */
+	private static boolean findFaces(String file, FacePreprocessor detector, Mat scene, RectVector faceRects)
+			throws Exception {
+		OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+		try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(file)) {
+			grabber.start();
+			Frame frame;
+			for (int frames = 0; frames < MAX_FRAMES && (frame = grabber.grabImage()) != null; frames++) {
+				cvtColor(converter.convert(frame), scene, COLOR_BGRA2GRAY);
+				equalizeHist(scene, scene);
+				detector.detectFaces(scene, faceRects);
+				if (faceRects.size() > 0) {
+					return true;
+				}
+			}
+			grabber.stop();
+		}
+		return false;
+	}
+
+	/**
+	 * @return the expected faces that no found face overlaps by at least half
+	 */
+	private static List<String> missed(RectVector expected, RectVector found) {
+		List<String> missed = new ArrayList<>();
+		for (int i = 0; i < expected.size(); i++) {
+			try (Rect face = expected.get(i)) {
+				boolean matched = false;
+				for (int j = 0; j < found.size() && !matched; j++) {
+					try (Rect actual = found.get(j)) {
+						matched = FaceTracker.overlap(face, actual) >= MIN_OVERLAP;
+					}
+				}
+				if (!matched) {
+					missed.add(String.format("%d,%d %dx%d", face.x(), face.y(), face.width(), face.height()));
+				}
+			}
+		}
+		return missed;
+	}
+}
@@ -0,0 +1,119 @@
+package application.benchmark;
+
+import static org.bytedeco.javacpp.opencv_imgproc.COLOR_BGRA2GRAY;
+import static org.bytedeco.javacpp.opencv_imgproc.cvtColor;
+import static org.bytedeco.javacpp.opencv_imgproc.equalizeHist;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacpp.opencv_core.RectVector;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+
+import application.facedetection.FaceRecognizer;
+import application.facerecognizer.DetectionSettings;
+import application.facerecognizer.FacePreprocessor;
+import application.facerecognizer.FaceTracker;
+
+/**
+ * Compares coarse to fine (pyramid) face detection with the full frame pass
+ * on the frames of a video: time per frame, speed-up, and recall, i.e. how
+ * many of the faces found by the full pass the pyramid finds as well
+ * (overlapping by at least half).
+ *
+ * The pyramid uses the DETECTION_* settings of application.properties, the
+ * full pass the same settings in full mode.
+ *
+ * Usage: PyramidDetectionBenchmark [video file] [max frames]
+ */
+public class PyramidDetectionBenchmark {
+
+	private static final double MIN_OVERLAP = 0.5;
+
+	public static void main(String[] args) throws Exception {
+		FaceRecognizer.loadApplicationProperties();
+		String videoFile = args.length > 0 ? args[0] : FaceRecognizer.properties.getProperty("VIDEO_FILE");
+		int maxFrames = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+
+		DetectionSettings configured = FaceRecognizer.readDetectionSettings();
+		DetectionSettings full = configured.withMode(DetectionSettings.Mode.FULL);
+		DetectionSettings pyramid = configured.withMode(DetectionSettings.Mode.PYRAMID);
+		FacePreprocessor fullDetector = newDetector(full);
+		FacePreprocessor pyramidDetector = newDetector(pyramid);
+		System.out.println("Reference: " + full);
+		System.out.println("Pyramid:   " + pyramid);
+
+		OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+		long fullNanos = 0;
+		long pyramidNanos = 0;
+		int frames = 0;
+		int fullFaces = 0;
+		int pyramidFaces = 0;
+		int matched = 0;
+		try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(videoFile);
+				Mat gray = new Mat();
+				RectVector fullRects = new RectVector();
+				RectVector pyramidRects = new RectVector()) {
+			grabber.start();
+			Frame frame;
+			while (frames < maxFrames && (frame = grabber.grabImage()) != null) {
+				cvtColor(converter.convert(frame), gray, COLOR_BGRA2GRAY);
+				equalizeHist(gray, gray);
+
+				long start = System.nanoTime();
+				fullDetector.detectFaces(gray, fullRects);
+				fullNanos += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				pyramidDetector.detectFaces(gray, pyramidRects);
+				pyramidNanos += System.nanoTime() - start;
+
+				fullFaces += fullRects.size();
+				pyramidFaces += pyramidRects.size();
+				matched += countMatched(fullRects, pyramidRects);
+				frames++;
+			}
+			grabber.stop();
+		}
+
+		if (frames == 0) {
+			System.out.println("No frames in " + videoFile);
+			return;
+		}
+		System.out.println(String.format("%d frames", frames));
+		System.out.println(String.format("Full frame: %.2f ms/frame, %d faces", fullNanos / 1e6 / frames, fullFaces));
+		System.out.println(String.format("Pyramid:    %.2f ms/frame, %d faces", pyramidNanos / 1e6 / frames,
+				pyramidFaces));
+		System.out.println(String.format("Speed-up %.2fx, recall %.3f against the full frame pass",
+				pyramidNanos == 0 ? 0 : (double) fullNanos / pyramidNanos,
+				fullFaces == 0 ? 1.0 : (double) matched / fullFaces));
+	}
+
+	private static FacePreprocessor newDetector(DetectionSettings settings) {
+		FacePreprocessor detector = new FacePreprocessor(FaceRecognizer.properties.getProperty("FACE_CLASSIFIER"),
+				FaceRecognizer.properties.getProperty("EYE_CLASSIFIER"));
+		detector.setDetectionSettings(settings);
+		return detector;
+	}
+
+	/**
+	 * @return how many reference faces overlap one of the found faces
+	 */
+	private static int countMatched(RectVector reference, RectVector found) {
+		int matched = 0;
+		for (int i = 0; i < reference.size(); i++) {
+			try (Rect expected = reference.get(i)) {
+				for (int j = 0; j < found.size(); j++) {
+					try (Rect actual = found.get(j)) {
+						if (FaceTracker.overlap(expected, actual) >= MIN_OVERLAP) {
+							matched++;
+							break;
+						}
+					}
+				}
+			}
+		}
+		return matched;
+	}
+}
@@ -0,0 +1,148 @@
+package application.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import application.facedetection.FaceRecognizer;
+import application.facerecognizer.DeltaFacer;
+import application.facerecognizer.FaceDatasetLoader;
+import application.facerecognizer.RecognitionService;
+import application.facerecognizer.RecognizerType;
+
+/**
+ * Measures how prediction throughput of a {@link RecognitionService} scales
+ * with the number of threads, from one thread up to the number of cores,
+ * for every recognizer type. Then predicts on all cores while a second,
+ * retrained recognizer is swapped in, and compares the slowest prediction
+ * with and without the swap.
+ *
+ * Usage: RecognitionScalingBenchmark [face folder]
+ *
+ * The face folder defaults to TRAINING_DATA of application.properties. The
+ * time per thread count is set with -Dbenchmark.seconds.
+ */
+public class RecognitionScalingBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		FaceRecognizer.loadApplicationProperties();
+		String faceFolder = args.length > 0 ? args[0] : FaceRecognizer.properties.getProperty("TRAINING_DATA");
+		double seconds = Double.parseDouble(System.getProperty("benchmark.seconds", "2"));
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		List<Mat> testImages = new ArrayList<>();
+		try (FaceDatasetLoader loader = new FaceDatasetLoader()) {
+			for (FaceDatasetLoader.Sample sample : loader.scan(faceFolder).getTestSamples()) {
+				testImages.add(sample.read());
+			}
+		}
+		if (testImages.isEmpty()) {
+			System.out.println("No test images in " + faceFolder);
+			return;
+		}
+
+		for (RecognizerType type : RecognizerType.values()) {
+			DeltaFacer recognizer = new DeltaFacer(type);
+			recognizer.train(faceFolder);
+			try (RecognitionService service = new RecognitionService(recognizer, cores)) {
+				System.out.println(String.format("%s recognizer, %s", type.getName(),
+						recognizer.isThreadSafe() ? "shared" : "one model copy per thread"));
+				System.out.println(String.format("%8s %12s %9s %11s %12s", "threads", "predict/s", "speed-up",
+						"efficiency", "slowest ms"));
+				double single = 0;
+				for (int threads = 1; threads <= cores; threads = threads < cores ? Math.min(threads * 2, cores)
+						: threads + 1) {
+					Run run = run(service, testImages, threads, seconds, null);
+					if (threads == 1) {
+						single = run.throughput();
+					}
+					System.out.println(String.format("%8d %12.1f %8.2fx %10.0f%% %12.2f", threads, run.throughput(),
+							run.throughput() / single, 100 * run.throughput() / single / threads,
+							run.slowestNanos / 1e6));
+				}
+
+				DeltaFacer retrained = new DeltaFacer(type);
+				retrained.train(faceFolder);
+				Run swapped = run(service, testImages, cores, seconds, retrained);
+				System.out.println(String.format("%8d %12.1f %9s %11s %12.2f  with a swap", cores,
+						swapped.throughput(), "", "", swapped.slowestNanos / 1e6));
+			}
+			System.out.println();
+		}
+		for (Mat image : testImages) {
+			image.release();
+		}
+	}
+
+	private static class Run {
+		long predictions;
+		long nanos;
+		long slowestNanos;
+
+		double throughput() {
+			return nanos == 0 ? 0 : predictions / (nanos / 1e9);
+		}
+	}
+
+	/**
+	 * Predicts on the given number of threads for the given time.
+	 *
+	 * @param swapIn
+	 *            swapped into the service half way through, if not null
+	 */
+	private static Run run(RecognitionService service, List<Mat> images, int threads, double seconds,
+			DeltaFacer swapIn) throws InterruptedException {
+		long duration = (long) (seconds * 1e9);
+		AtomicLong predictions = new AtomicLong();
+		AtomicLong slowest = new AtomicLong();
+		CountDownLatch ready = new CountDownLatch(threads);
+		CountDownLatch go = new CountDownLatch(1);
+		long[] start = { 0 };
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			int offset = t;
+			Thread worker = new Thread(() -> {
+				ready.countDown();
+				try {
+					go.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				long count = 0;
+				long max = 0;
+				long end = start[0] + duration;
+				long now = System.nanoTime();
+				while (now < end) {
+					service.predict(images.get((int) ((offset + count * threads) % images.size())));
+					long finished = System.nanoTime();
+					max = Math.max(max, finished - now);
+					now = finished;
+					count++;
+				}
+				predictions.addAndGet(count);
+				slowest.accumulateAndGet(max, Math::max);
+			}, "predict-" + t);
+			worker.start();
+			workers.add(worker);
+		}
+		ready.await();
+		start[0] = System.nanoTime();
+		go.countDown();
+		if (swapIn != null) {
+			Thread.sleep(duration / 2_000_000);
+			service.swap(swapIn);
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		Run run = new Run();
+		run.predictions = predictions.get();
+		run.nanos = System.nanoTime() - start[0];
+		run.slowestNanos = slowest.get();
+		return run;
+	}
+}
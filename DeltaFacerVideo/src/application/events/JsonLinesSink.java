@@ -0,0 +1,37 @@
+package application.events;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends the events to a file, one JSON object per line, and flushes after
+ * every batch.
+ */
+public class JsonLinesSink implements RecognitionSink {
+
+	private final BufferedWriter out;
+
+	public JsonLinesSink(Path file) throws IOException {
+		this.out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+	}
+
+	@Override
+	public void accept(List<RecognitionEvent> events) throws IOException {
+		for (RecognitionEvent event : events) {
+			out.write(event.toJson());
+			out.newLine();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,38 @@
+package application.events;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands the events to code in the same process through a bounded queue.
+ * When the queue is full the batch waits on the delivery thread, so the
+ * subscription's drop policy decides what happens to a consumer that falls
+ * behind.
+ */
+public class QueueSink implements RecognitionSink {
+
+	private final BlockingQueue<RecognitionEvent> queue;
+
+	public QueueSink(int capacity) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+	}
+
+	/**
+	 * @return the queue to take the events from
+	 */
+	public BlockingQueue<RecognitionEvent> getQueue() {
+		return queue;
+	}
+
+	@Override
+	public void accept(List<RecognitionEvent> events) {
+		try {
+			for (RecognitionEvent event : events) {
+				queue.put(event);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
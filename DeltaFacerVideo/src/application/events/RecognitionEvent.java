@@ -0,0 +1,123 @@
+package application.events;
+
+import java.util.Locale;
+
+/**
+ * A face recognized in a frame of a stream.
+ */
+public final class RecognitionEvent {
+
+	private final String streamId;
+	private final long frame;
+	private final long timestamp;
+	private final int x;
+	private final int y;
+	private final int width;
+	private final int height;
+	private final String label;
+	private final double confidence;
+	private final int trackId;
+
+	/**
+	 * @param frame
+	 *            sequence number of the frame in the stream
+	 * @param timestamp
+	 *            position of the frame in the stream, in microseconds
+	 * @param confidence
+	 *            distance reported by the recognizer, NaN if there is none
+	 * @param trackId
+	 *            id of the face's track, -1 if faces are not tracked
+	 */
+	public RecognitionEvent(String streamId, long frame, long timestamp, int x, int y, int width, int height,
+			String label, double confidence, int trackId) {
+		this.streamId = streamId;
+		this.frame = frame;
+		this.timestamp = timestamp;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.label = label;
+		this.confidence = confidence;
+		this.trackId = trackId;
+	}
+
+	public String getStreamId() {
+		return streamId;
+	}
+
+	public long getFrame() {
+		return frame;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public double getConfidence() {
+		return confidence;
+	}
+
+	public int getTrackId() {
+		return trackId;
+	}
+
+	/**
+	 * @return the event as a JSON object on one line
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder(160);
+		json.append("{\"stream\":");
+		appendString(json, streamId);
+		json.append(",\"frame\":").append(frame);
+		json.append(",\"time_ms\":").append(String.format(Locale.ROOT, "%.1f", timestamp / 1000.0));
+		json.append(",\"track\":").append(trackId);
+		json.append(",\"x\":").append(x).append(",\"y\":").append(y);
+		json.append(",\"width\":").append(width).append(",\"height\":").append(height);
+		json.append(",\"label\":");
+		appendString(json, label);
+		json.append(",\"confidence\":")
+				.append(Double.isNaN(confidence) ? "null" : String.format(Locale.ROOT, "%.2f", confidence));
+		return json.append('}').toString();
+	}
+
+	private static void appendString(StringBuilder json, String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+
+	@Override
+	public String toString() {
+		return toJson();
+	}
+}
@@ -0,0 +1,206 @@
+package application.events;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import application.metrics.LatencyHistogram;
+import application.metrics.Metrics;
+
+/**
+ * Publishes recognition events to any number of sinks. Every subscription
+ * has a bounded queue and a daemon thread of its own that takes the events
+ * off it in batches and hands them to the sink, so publishing never waits
+ * on a sink. What happens when a queue is full is up to the subscription's
+ * {@link DropPolicy}.
+ *
+ * For every subscription the {@link Metrics} have events.&lt;name&gt;.delivered,
+ * .dropped, .blocked and .errors, the time the sink takes per batch as
+ * events.&lt;name&gt;.batch, and the queue as queue.events.&lt;name&gt;.
+ */
+public class RecognitionEventBus implements AutoCloseable {
+
+	public enum DropPolicy {
+		/** drop the event being published, keeping the queued ones */
+		DROP_NEWEST,
+		/** drop the oldest queued event to make room */
+		DROP_OLDEST,
+		/** wait for room, holding up the publisher: back pressure */
+		BLOCK
+	}
+
+	/**
+	 * A sink and the queue and thread that feed it.
+	 */
+	public class Subscription extends Thread {
+		private final RecognitionSink sink;
+		private final BlockingQueue<RecognitionEvent> queue;
+		private final int batchSize;
+		private final DropPolicy dropPolicy;
+		private volatile boolean closed = false;
+
+		private final LongAdder delivered;
+		private final LongAdder dropped;
+		private final LongAdder blocked;
+		private final LongAdder errors;
+		private final LatencyHistogram batchLatency;
+
+		Subscription(String name, RecognitionSink sink, int capacity, int batchSize, DropPolicy dropPolicy) {
+			super("events-" + name);
+			setDaemon(true);
+			this.sink = sink;
+			this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+			this.batchSize = Math.max(1, batchSize);
+			this.dropPolicy = dropPolicy;
+			this.delivered = Metrics.counter("events." + name + ".delivered");
+			this.dropped = Metrics.counter("events." + name + ".dropped");
+			this.blocked = Metrics.counter("events." + name + ".blocked");
+			this.errors = Metrics.counter("events." + name + ".errors");
+			this.batchLatency = Metrics.histogram("events." + name + ".batch");
+			Metrics.gauge("queue.events." + name, queue::size);
+		}
+
+		void offer(RecognitionEvent event) {
+			if (queue.offer(event)) {
+				return;
+			}
+			switch (dropPolicy) {
+			case DROP_NEWEST:
+				dropped.increment();
+				break;
+			case DROP_OLDEST:
+				while (!queue.offer(event)) {
+					if (queue.poll() != null) {
+						dropped.increment();
+					}
+				}
+				break;
+			case BLOCK:
+				blocked.increment();
+				try {
+					queue.put(event);
+				} catch (InterruptedException e) {
+					dropped.increment();
+					Thread.currentThread().interrupt();
+				}
+				break;
+			}
+		}
+
+		@Override
+		public void run() {
+			List<RecognitionEvent> batch = new ArrayList<>(batchSize);
+			try {
+				while (!closed || !queue.isEmpty()) {
+					RecognitionEvent first = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					queue.drainTo(batch, batchSize - 1);
+					long start = System.nanoTime();
+					try {
+						sink.accept(batch);
+						delivered.add(batch.size());
+					} catch (Exception e) {
+						errors.add(batch.size());
+						System.err.println("Failed to deliver " + batch.size() + " events to " + getName() + ": "
+								+ e.getMessage());
+					}
+					batchLatency.recordSince(start);
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				// stopped without draining
+			}
+			try {
+				sink.close();
+			} catch (Exception e) {
+				System.err.println("Failed to close " + getName() + ": " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Delivers what is still queued, then closes the sink.
+		 */
+		void shutdown() {
+			closed = true;
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d delivered, %d dropped, %d blocked, %d failed", getName(), delivered.sum(),
+					dropped.sum(), blocked.sum(), errors.sum());
+		}
+	}
+
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+	private final LongAdder published = Metrics.counter("events.published");
+
+	/**
+	 * @param name
+	 *            names the subscription's thread and metrics
+	 * @param capacity
+	 *            events queued for the sink before the drop policy applies
+	 * @param batchSize
+	 *            most events handed to the sink at once
+	 */
+	public Subscription subscribe(String name, RecognitionSink sink, int capacity, int batchSize,
+			DropPolicy dropPolicy) {
+		Subscription subscription = new Subscription(name, sink, capacity, batchSize, dropPolicy);
+		subscription.start();
+		subscriptions.add(subscription);
+		return subscription;
+	}
+
+	/**
+	 * Stops the subscription after it has delivered what is queued.
+	 */
+	public void unsubscribe(Subscription subscription) {
+		if (subscriptions.remove(subscription)) {
+			subscription.shutdown();
+		}
+	}
+
+	/**
+	 * @return whether anyone listens, so that events need not be made if not
+	 */
+	public boolean hasSubscribers() {
+		return !subscriptions.isEmpty();
+	}
+
+	/**
+	 * Queues the event for every sink; may be called from any thread.
+	 */
+	public void publish(RecognitionEvent event) {
+		published.increment();
+		for (Subscription subscription : subscriptions) {
+			subscription.offer(event);
+		}
+	}
+
+	public void printStatistics() {
+		for (Subscription subscription : subscriptions) {
+			System.out.println(subscription);
+		}
+	}
+
+	/**
+	 * Delivers what is queued and closes every sink.
+	 */
+	@Override
+	public void close() {
+		for (Subscription subscription : subscriptions) {
+			unsubscribe(subscription);
+		}
+	}
+}
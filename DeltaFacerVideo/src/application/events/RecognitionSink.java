@@ -0,0 +1,23 @@
+package application.events;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives recognition events in batches, on the delivery thread of its
+ * subscription, so it may be as slow as it needs to be without holding up
+ * the frames.
+ */
+public interface RecognitionSink extends AutoCloseable {
+
+	/**
+	 * @param events
+	 *            one or more events in the order they were published; the list
+	 *            is only valid during the call
+	 */
+	void accept(List<RecognitionEvent> events) throws IOException;
+
+	@Override
+	default void close() throws IOException {
+	}
+}
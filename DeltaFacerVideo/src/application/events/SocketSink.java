@@ -0,0 +1,77 @@
+package application.events;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Sends the events as JSON lines over TCP, typically to a consumer on the
+ * same machine. The connection is made on the first batch and made again
+ * after it breaks, at most once every few seconds; batches that come while
+ * there is no connection fail and are counted as errors by the bus.
+ */
+public class SocketSink implements RecognitionSink {
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+	private static final long RETRY_INTERVAL_NANOS = 5_000_000_000L;
+
+	private final String host;
+	private final int port;
+	private Socket socket;
+	private BufferedWriter out;
+	private long lastAttempt = System.nanoTime() - RETRY_INTERVAL_NANOS;
+
+	public SocketSink(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	@Override
+	public void accept(List<RecognitionEvent> events) throws IOException {
+		if (out == null) {
+			connect();
+		}
+		try {
+			for (RecognitionEvent event : events) {
+				out.write(event.toJson());
+				out.write('\n');
+			}
+			out.flush();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private void connect() throws IOException {
+		long now = System.nanoTime();
+		if (now - lastAttempt < RETRY_INTERVAL_NANOS) {
+			throw new IOException("Not connected to " + host + ":" + port);
+		}
+		lastAttempt = now;
+		Socket connection = new Socket();
+		try {
+			connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+			connection.setTcpNoDelay(true);
+			out = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8));
+			socket = connection;
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		out = null;
+		if (socket != null) {
+			Socket connection = socket;
+			socket = null;
+			connection.close();
+		}
+	}
+}
@@ -5,6 +5,7 @@ import static org.bytedeco.javacpp.opencv_highgui.destroyAllWindows;
 import static org.bytedeco.javacpp.opencv_highgui.imshow;
 import static org.bytedeco.javacpp.opencv_highgui.waitKey;
 import static org.bytedeco.javacpp.opencv_imgproc.COLOR_BGRA2GRAY;
+import static org.bytedeco.javacpp.opencv_imgproc.COLOR_GRAY2BGR;
 import static org.bytedeco.javacpp.opencv_imgproc.cvtColor;
 import static org.bytedeco.javacpp.opencv_imgproc.equalizeHist;
 import static org.bytedeco.javacpp.opencv_imgproc.putText;
@@ -13,94 +14,633 @@ import static org.bytedeco.javacpp.opencv_imgproc.rectangle;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.bytedeco.javacpp.opencv_core.Mat;
 import org.bytedeco.javacpp.opencv_core.Point;
-import org.bytedeco.javacpp.opencv_core.RectVector;
+import org.bytedeco.javacpp.opencv_core.Rect;
 import org.bytedeco.javacpp.opencv_core.Scalar;
 import org.bytedeco.javacpp.opencv_core.Size;
-import org.bytedeco.javacpp.opencv_objdetect.CascadeClassifier;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
 import org.bytedeco.javacv.FrameGrabber.Exception;
+import org.bytedeco.javacv.FrameRecorder;
 import org.bytedeco.javacv.OpenCVFrameConverter;
 
+import application.events.JsonLinesSink;
+import application.events.RecognitionEvent;
+import application.events.RecognitionEventBus;
+import application.events.SocketSink;
+import application.facerecognizer.CascadePool;
 import application.facerecognizer.DeltaFacer;
+import application.facerecognizer.DetectionSettings;
 import application.facerecognizer.FacePreprocessor;
+import application.facerecognizer.FaceTracker;
+import application.facerecognizer.MotionGate;
+import application.facerecognizer.Prediction;
+import application.facerecognizer.RecognitionCache;
+import application.facerecognizer.RecognitionService;
 import application.facerecognizer.RecognizerType;
+import application.metrics.LatencyHistogram;
+import application.metrics.Metrics;
+import application.metrics.MetricsReporter;
 
 public class FaceRecognizer {
 
 	public static Properties properties;
-	static CascadeClassifier faceClassifier;
-	static CascadeClassifier eyeClassifier;
+	// cascades shared by all preprocessors, null if they couldn't be loaded
+	static CascadePool faceCascades;
+	static CascadePool eyeCascades;
+	static ExecutorService alignmentExecutor;
 	static OpenCVFrameConverter.ToMat converterToMat = new OpenCVFrameConverter.ToMat();
 	static FacePreprocessor preprocessor;
 
 	public static DeltaFacer mainRecognizer;
+	// predicts with mainRecognizer from the recognition workers
+	static RecognitionService recognitionService;
+	private static final Scalar BOX_COLOUR = new Scalar(0, 255, 0, 1);
+	private static final Scalar TEXT_COLOUR = new Scalar(0, 255, 0, 2.0);
+	static RecognitionCache recognitionCache;
+	// written by the render stage only
+	private static ResultsWriter resultsWriter;
+	private static FFmpegFrameRecorder videoRecorder;
+	private static long renderedFrames = 0;
+	private static final LatencyHistogram predictLatency = Metrics.histogram("predict");
+	private static final LongAdder facesSeen = Metrics.counter("faces");
+	private static final AtomicLong facesInFrame = new AtomicLong();
+	private static MetricsReporter metricsReporter;
+	// adapts the quality to FRAME_BUDGET_MS, null if there is no budget
+	private static QualityGovernor governor;
+	/**
+	 * Every face recognized, to subscribe to from code that runs the
+	 * recognizer, besides the sinks of EVENT_SINKS.
+	 */
+	public static final RecognitionEventBus events = new RecognitionEventBus();
+	// System.nanoTime() when main() started, for the time to the first frame
+	private static long startNanos;
+	private static final AtomicBoolean firstFrameRecognized = new AtomicBoolean();
+	// first frame of the video, grabbed by FAST_START while the model loads
+	private static Mat prefetchedFrame;
+	private static long prefetchedTimestamp;
 
 	public static void main(String[] args) throws Exception {
+		startNanos = System.nanoTime();
 
-		loadApplicationProperties();
+		loadProperties();
+		startMetrics();
+		startEventSinks();
 
 		boolean load = Boolean.parseBoolean(properties.getProperty("LOAD_FROM_FILE"));
 		RecognizerType recognizer = getRecognizerType();
+		String streams = properties.getProperty("STREAMS", "").trim();
 
-		boolean toSave = setupRecognizer(recognizer, load);
+		boolean toSave = false;
+		FFmpegFrameGrabber grabber = null;
+		if (Boolean.parseBoolean(properties.getProperty("FAST_START")) && load
+				&& new File(modelFile(recognizer)).exists()) {
+			grabber = fastStart(recognizer, streams.isEmpty());
+		} else {
+			loadDetectors();
+			toSave = setupRecognizer(recognizer, load);
+		}
+
+		double frameBudget = getDoubleProperty("FRAME_BUDGET_MS", 0);
+		if (frameBudget > 0) {
+			governor = new QualityGovernor(frameBudget, preprocessor.getDetectionSettings(),
+					getIntProperty("DETECTION_INTERVAL", 1), preprocessor.isAlignFaces());
+			governor.addPreprocessor(preprocessor);
+		}
 
 		if (toSave) {
-			mainRecognizer.save("resources/models/" + mainRecognizer.getRecognizerType().getName() + "_Trained");
+			mainRecognizer.save(modelFile(recognizer));
 			System.out.println("Saved the Trained Data");
 		}
 
-		FFmpegFrameGrabber grabber = initializeFrameGrabber();
-		Frame videoFrame = null;
-		Mat videoMat;
+		recognitionService = new RecognitionService(mainRecognizer, getIntProperty("RECOGNIZE_WORKERS", 1));
+
 		double paddingAmount = Double.parseDouble(properties.getProperty("PADDING_AMOUNT"));
-		String name = null;
-		while (true) {
-			videoFrame = grabber.grabImage();
-			try (Mat videoMatGray = new Mat(); RectVector rectVector = new RectVector()) {
+		if (!streams.isEmpty()) {
+			try {
+				runStreams(streams.split(";"), paddingAmount);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			recognitionService.close();
+			printPreprocessingStatistics();
+			stopEventSinks();
+			stopMetrics();
+			return;
+		}
+
+		if (grabber == null) {
+			grabber = initializeFrameGrabber();
+		}
+		FFmpegFrameGrabber videoGrabber = grabber;
+		boolean headless = Boolean.parseBoolean(properties.getProperty("HEADLESS"));
+		String resultsFile = properties.getProperty("RESULTS_FILE", "").trim();
+		if (!resultsFile.isEmpty()) {
+			try {
+				resultsWriter = new ResultsWriter(resultsFile);
+			} catch (IOException e) {
+				System.err.println("Failed to create the results file: " + e.getMessage());
+			}
+		}
+
+		FramePipeline pipeline = buildPipeline(paddingAmount, headless, grabber.getFrameRate());
+		long start = System.nanoTime();
+		try {
+			pipeline.run(task -> {
+				if (prefetchedFrame != null) {
+					prefetchedFrame.copyTo(task.videoMat);
+					task.timestamp = prefetchedTimestamp;
+					prefetchedFrame.release();
+					prefetchedFrame = null;
+					return true;
+				}
+				Frame videoFrame = videoGrabber.grabImage();
 				if (videoFrame == null || videoFrame.image == null)
+					return false;
+				// the grabber reuses its buffer for the next frame, so keep a copy,
+				// in the buffer of the recycled task once it has the right size
+				converterToMat.convert(videoFrame).copyTo(task.videoMat);
+				task.timestamp = videoGrabber.getTimestamp();
+				return true;
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("Processed %d frames in %.1f s, %.1f fps end to end", renderedFrames,
+				seconds, renderedFrames / seconds));
+		if (!headless) {
+			destroyAllWindows();
+		}
+		if (recognitionCache != null) {
+			System.out.println(recognitionCache);
+		}
+		printPreprocessingStatistics();
+		if (resultsWriter != null) {
+			try {
+				resultsWriter.close();
+			} catch (IOException e) {
+				System.err.println("Failed to write the results file: " + e.getMessage());
+			}
+		}
+		if (videoRecorder != null) {
+			try {
+				videoRecorder.stop();
+				videoRecorder.release();
+			} catch (FrameRecorder.Exception e) {
+				System.err.println("Failed to finish the output video: " + e.getMessage());
+			}
+		}
+
+		grabber.flush();
+		grabber.release();
+		grabber.close();
+		recognitionService.close();
+		stopEventSinks();
+		stopMetrics();
+	}
+
+	private static void startMetrics() {
+		Metrics.gauge("faces.per_frame", facesInFrame::get);
+		if (Boolean.parseBoolean(properties.getProperty("METRICS_JMX", "true"))) {
+			Metrics.registerMBean();
+		}
+		int interval = getIntProperty("METRICS_INTERVAL_SECONDS", 0);
+		if (interval > 0) {
+			try {
+				metricsReporter = new MetricsReporter(interval, properties.getProperty("METRICS_FILE", "").trim());
+				metricsReporter.start();
+			} catch (IOException e) {
+				System.err.println("Failed to open the metrics file: " + e.getMessage());
+			}
+		}
+	}
+
+	private static void stopMetrics() {
+		if (metricsReporter != null) {
+			metricsReporter.close();
+		}
+	}
+
+	/**
+	 * Subscribes the sinks of EVENT_SINKS, separated by semicolons:
+	 * file:&lt;path&gt; appends JSON lines to a file, socket:&lt;host&gt;:&lt;port&gt;
+	 * sends them over TCP. Every sink gets a queue of EVENT_QUEUE_CAPACITY
+	 * events, delivered EVENT_BATCH_SIZE at a time, and EVENT_DROP_POLICY
+	 * for when the queue is full.
+	 */
+	private static void startEventSinks() {
+		int capacity = getIntProperty("EVENT_QUEUE_CAPACITY", 1024);
+		int batchSize = getIntProperty("EVENT_BATCH_SIZE", 64);
+		RecognitionEventBus.DropPolicy dropPolicy = RecognitionEventBus.DropPolicy
+				.valueOf(properties.getProperty("EVENT_DROP_POLICY", "DROP_OLDEST").trim());
+		String[] sinks = properties.getProperty("EVENT_SINKS", "").trim().split(";");
+		for (int i = 0; i < sinks.length; i++) {
+			String sink = sinks[i].trim();
+			if (sink.isEmpty()) {
+				continue;
+			}
+			String name = "sink" + (i + 1);
+			try {
+				if (sink.startsWith("file:")) {
+					events.subscribe(name, new JsonLinesSink(Paths.get(sink.substring("file:".length()))), capacity,
+							batchSize, dropPolicy);
+				} else if (sink.startsWith("socket:") && sink.lastIndexOf(':') > "socket:".length()) {
+					int colon = sink.lastIndexOf(':');
+					events.subscribe(name, new SocketSink(sink.substring("socket:".length(), colon),
+							Integer.parseInt(sink.substring(colon + 1))), capacity, batchSize, dropPolicy);
+				} else {
+					System.err.println("Unknown event sink: " + sink);
 					continue;
+				}
+				System.out.println(name + ": " + sink + ", " + dropPolicy);
+			} catch (IOException | NumberFormatException e) {
+				System.err.println("Failed to open the event sink " + sink + ": " + e.getMessage());
+			}
+		}
+	}
 
-				videoMat = converterToMat.convert(videoFrame);
+	private static void stopEventSinks() {
+		events.printStatistics();
+		events.close();
+	}
 
-				// Convert the current frame to grayscale:
-				cvtColor(videoMat, videoMatGray, COLOR_BGRA2GRAY);
-				equalizeHist(videoMatGray, videoMatGray);
+	/**
+	 * Publishes the faces of a frame that went through recognition.
+	 */
+	private static void publishEvents(String streamId, FrameTask task) {
+		if (!events.hasSubscribers()) {
+			return;
+		}
+		for (int i = 0; i < task.names.length; i++) {
+			try (Rect rect = task.faceRects.get(i)) {
+				events.publish(new RecognitionEvent(streamId, task.sequence, task.timestamp, rect.x(), rect.y(),
+						rect.width(), rect.height(), task.names[i],
+						i < task.confidences.length ? task.confidences[i] : Double.NaN,
+						i < task.trackIds.length ? task.trackIds[i] : -1));
+			}
+		}
+	}
 
-				Size targetSize = new Size(257, 300);
-				List<Mat> imageList = preprocessor.facepreprocessing(videoMatGray, rectVector, targetSize,
-						paddingAmount);
+	/**
+	 * Processes the given video sources at the same time, with one set of
+	 * workers and the one recognizer. Every stream has its own tracker and
+	 * recognition cache; the cascades are loaded once per worker thread.
+	 */
+	private static void runStreams(String[] urls, double paddingAmount) throws InterruptedException {
+		Size targetSize = getTargetSize();
+		int detectionInterval = getIntProperty("DETECTION_INTERVAL", 1);
+		ThreadLocal<FacePreprocessor> detectors = ThreadLocal.withInitial(FaceRecognizer::newGovernedPreprocessor);
 
-				for (int i = 0; i < imageList.size(); i++) {
-					name = mainRecognizer.predictLabel(imageList.get(i));
+		MultiStreamProcessor processor = new MultiStreamProcessor(
+				getIntProperty("STREAM_WORKERS", Runtime.getRuntime().availableProcessors()),
+				getIntProperty("PIPELINE_QUEUE_CAPACITY", 4), FaceRecognizer::configureGrabber,
+				Boolean.parseBoolean(properties.getProperty("STREAM_VIRTUAL_THREADS", "true")), name -> {
+					FaceTracker tracker = newTracker(detectionInterval);
+					RecognitionCache cache = newRecognitionCache();
+					String[][] lastNames = { new String[0] };
+					return task -> {
+						toGray(task);
 
-					rectangle(videoMat, rectVector.get(i), new Scalar(0, 255, 0, 1));
-					int pos_x = Math.max(rectVector.get(i).tl().x() - 10, 0);
-					int pos_y = Math.max(rectVector.get(i).tl().y() - 10, 0);
+						FacePreprocessor detector = detectors.get();
+						tracker.detect(task.videoMatGray, task.faceRects, detector);
+						task.trackIds = tracker.getTrackIds();
+						task.trackConfidences = tracker.getTrackConfidences();
+						task.endedTracks = tracker.getEndedTracks();
+						task.faces = detector.preprocessFaces(task.faceRects, task.videoMatGray, targetSize,
+								paddingAmount, task.faceBuffers);
+						recognize(task, cache);
+						recordFirstFrame();
+						publishEvents(name, task);
+						if (governor != null) {
+							governor.record(System.nanoTime() - task.grabbedAt);
+						}
 
-					// And now put it into the image:
-					putText(videoMat, "Person: "+name, new Point(pos_x, pos_y), FONT_HERSHEY_PLAIN, 1.0,
-							new Scalar(0, 255, 0, 2.0));
+						// only log when the people in view change
+						if (!Arrays.equals(task.names, lastNames[0])) {
+							System.out.println(String.format("[%s] frame %d: %s", name, task.sequence,
+									String.join(", ", task.names)));
+							lastNames[0] = task.names;
+						}
+					};
+				});
+		for (int i = 0; i < urls.length; i++) {
+			String name = "stream" + (i + 1);
+			System.out.println(name + ": " + urls[i].trim());
+			processor.addStream(name, urls[i].trim());
+		}
+		processor.run();
+	}
+
+	/**
+	 * @return the size faces are cropped to, the size of the images the
+	 *         recognizer was trained on
+	 */
+	private static Size getTargetSize() {
+		return mainRecognizer.getImageWidth() > 0
+				? new Size(mainRecognizer.getImageWidth(), mainRecognizer.getImageHeight())
+				: new Size(257, 300);
+	}
+
+	/**
+	 * @return a cache as configured, null if caching is off
+	 */
+	private static RecognitionCache newRecognitionCache() {
+		int cacheSize = getIntProperty("RECOGNITION_CACHE_SIZE", 0);
+		if (cacheSize <= 0) {
+			return null;
+		}
+		return new RecognitionCache(cacheSize, getIntProperty("RECOGNITION_REFRESH_FRAMES", 30),
+				getIntProperty("RECOGNITION_REFRESH_MS", 2000),
+				getDoubleProperty("RECOGNITION_MIN_TRACK_CONFIDENCE", 0.8));
+	}
+
+	/**
+	 * Fills in the name and confidence of every face of the frame, from the
+	 * cache where it has a recent enough prediction for the face's track.
+	 */
+	private static void recognize(FrameTask task, RecognitionCache cache) {
+		String[] names = new String[task.faces.size()];
+		double[] confidences = new double[names.length];
+		if (cache != null) {
+			cache.evict(task.endedTracks);
+		}
+		for (int i = 0; i < names.length; i++) {
+			Prediction prediction = cache == null ? null
+					: cache.get(task.trackIds[i], task.sequence, task.trackConfidences[i]);
+			if (prediction == null) {
+				long start = System.nanoTime();
+				prediction = recognitionService.predict(task.faces.get(i));
+				predictLatency.recordSince(start);
+				if (cache != null) {
+					cache.put(task.trackIds[i], task.sequence, prediction);
 				}
+			}
+			names[i] = prediction.getLabel();
+			confidences[i] = prediction.getConfidence();
+		}
+		task.names = names;
+		task.confidences = confidences;
+	}
+
+	private static FFmpegFrameRecorder startRecorder(String file, Mat frame, double frameRate)
+			throws FrameRecorder.Exception {
+		FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(file, frame.cols(), frame.rows());
+		recorder.setFrameRate(frameRate > 0 ? frameRate : 25);
+		recorder.start();
+		return recorder;
+	}
+
+	/**
+	 * @param headless
+	 *            don't show the frames, which also drops the wait between
+	 *            frames that showing them needs
+	 * @param frameRate
+	 *            frame rate of the annotated video, if one is written
+	 */
+	private static FramePipeline buildPipeline(double paddingAmount, boolean headless, double frameRate) {
+		FramePipeline pipeline = new FramePipeline(getIntProperty("PIPELINE_QUEUE_CAPACITY", 4));
+		// faces have to be the size of the images the recognizer was trained on
+		Size targetSize = getTargetSize();
+
+		recognitionCache = newRecognitionCache();
 
+		pipeline.addStage("convert", getIntProperty("CONVERT_WORKERS", 1), () -> FaceRecognizer::toGray);
+
+		int detectionInterval = getIntProperty("DETECTION_INTERVAL", 1);
+		boolean motionGate = Boolean.parseBoolean(properties.getProperty("MOTION_GATE"));
+		if (detectionInterval > 1 || recognitionCache != null || motionGate) {
+			// the tracker and the motion gate carry faces from one frame to the
+			// next, so they need the frames in order
+			if (getIntProperty("DETECT_WORKERS", 1) > 1) {
+				System.out.println("DETECT_WORKERS ignored: tracking, the recognition cache or the motion gate"
+						+ " need a single ordered detect stage");
 			}
-			imshow("face_recognizer", videoMat);
+			pipeline.addOrderedStage("detect", () -> {
+				FaceTracker tracker = newTracker(detectionInterval);
+				return task -> {
+					tracker.detect(task.videoMatGray, task.faceRects);
+					task.trackIds = tracker.getTrackIds();
+					task.trackConfidences = tracker.getTrackConfidences();
+					task.endedTracks = tracker.getEndedTracks();
+					task.faces = preprocessor.preprocessFaces(task.faceRects, task.videoMatGray, targetSize,
+							paddingAmount, task.faceBuffers);
+				};
+			});
+		} else {
+			pipeline.addStage("detect", getIntProperty("DETECT_WORKERS", 1), () -> {
+				// the scratch buffers of a preprocessor are not thread safe, every
+				// worker gets its own
+				FacePreprocessor workerPreprocessor = newGovernedPreprocessor();
+				return task -> task.faces = workerPreprocessor.facepreprocessing(task.videoMatGray, task.faceRects,
+						targetSize, paddingAmount, task.faceBuffers);
+			});
+		}
+
+		pipeline.addStage("recognize", getIntProperty("RECOGNIZE_WORKERS", 1),
+				() -> task -> recognize(task, recognitionCache));
+
+		String outputVideo = properties.getProperty("OUTPUT_VIDEO", "").trim();
+		pipeline.addOrderedStage("render", () -> {
+			Point textOrigin = new Point();
+			OpenCVFrameConverter.ToMat recorderConverter = new OpenCVFrameConverter.ToMat();
+			Mat colourFrame = new Mat();
+			return task -> {
+				renderedFrames++;
+				recordFirstFrame();
+				if (governor != null) {
+					governor.record(System.nanoTime() - task.grabbedAt);
+				}
+				facesInFrame.set(task.names.length);
+				facesSeen.add(task.names.length);
+				if (resultsWriter != null) {
+					resultsWriter.write(task);
+				}
+				publishEvents("video", task);
+				if (headless && outputVideo.isEmpty()) {
+					return;
+				}
+
+				Mat videoMat = task.videoMat;
+				if (videoMat.channels() == 1) {
+					// decoded as gray, draw the boxes in colour all the same
+					cvtColor(videoMat, colourFrame, COLOR_GRAY2BGR);
+					videoMat = colourFrame;
+				}
+				for (int i = 0; i < task.names.length; i++) {
+					try (Rect faceRect = task.faceRects.get(i)) {
+						rectangle(videoMat, faceRect, BOX_COLOUR);
+						int pos_x = Math.max(faceRect.x() - 10, 0);
+						int pos_y = Math.max(faceRect.y() - 10, 0);
+
+						// And now put it into the image:
+						putText(videoMat, "Person: " + task.names[i], textOrigin.x(pos_x).y(pos_y),
+								FONT_HERSHEY_PLAIN, 1.0, TEXT_COLOUR);
+					}
+				}
+				if (!outputVideo.isEmpty()) {
+					if (videoRecorder == null) {
+						videoRecorder = startRecorder(outputVideo, videoMat, frameRate);
+					}
+					videoRecorder.record(recorderConverter.convert(videoMat));
+				}
+				if (headless) {
+					return;
+				}
+				imshow("face_recognizer", videoMat);
+
+				char key = (char) waitKey(20);
+				// Exit this loop on escape:
+				if (key == 27) {
+					pipeline.stop();
+				}
+			};
+		});
+		return pipeline;
+	}
+
+	static int getIntProperty(String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return Integer.parseInt(value.trim());
+	}
 
-			char key = (char) waitKey(20);
-			// Exit this loop on escape:
-			if (key == 27) {
-				destroyAllWindows();
-				break;
+	static double getDoubleProperty(String key, double defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return Double.parseDouble(value.trim());
+	}
+
+	/**
+	 * @return the face detection settings of application.properties, the
+	 *         full frame pass if none are given
+	 */
+	public static DetectionSettings readDetectionSettings() {
+		DetectionSettings defaults = DetectionSettings.defaults();
+		String mode = properties.getProperty("DETECTION_MODE", defaults.getMode().name()).trim();
+		return new DetectionSettings(DetectionSettings.Mode.valueOf(mode.toUpperCase()),
+				getDoubleProperty("DETECTION_DOWNSCALE", defaults.getDownscale()),
+				getDoubleProperty("DETECTION_SCALE_FACTOR", defaults.getScaleFactor()),
+				getIntProperty("DETECTION_MIN_NEIGHBOURS", defaults.getMinNeighbours()),
+				getDoubleProperty("DETECTION_MIN_FACE", defaults.getMinFaceSize()),
+				getDoubleProperty("DETECTION_MAX_FACE", defaults.getMaxFaceSize()),
+				getDoubleProperty("DETECTION_REFINE_PADDING", defaults.getRefinePadding()));
+	}
+
+	private static void loadCascades() {
+		int poolSize = getIntProperty("CASCADE_POOL_SIZE", Runtime.getRuntime().availableProcessors());
+		try {
+			faceCascades = new CascadePool(properties.getProperty("FACE_CLASSIFIER"), poolSize);
+			eyeCascades = new CascadePool(properties.getProperty("EYE_CLASSIFIER"), poolSize);
+		} catch (IOException e) {
+			System.err.println("Failed to load the cascades: " + e.getMessage());
+			faceCascades = null;
+			eyeCascades = null;
+			return;
+		}
+		int alignWorkers = getIntProperty("ALIGN_WORKERS", poolSize);
+		if (alignWorkers > 1) {
+			alignmentExecutor = Executors.newFixedThreadPool(alignWorkers, runnable -> {
+				Thread thread = new Thread(runnable, "align");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * @return a preprocessor for one thread; it shares the cascades and the
+	 *         alignment workers with the others
+	 */
+	static FacePreprocessor newPreprocessor() {
+		FacePreprocessor detector;
+		if (faceCascades != null) {
+			detector = new FacePreprocessor(faceCascades, eyeCascades, alignmentExecutor);
+		} else {
+			detector = new FacePreprocessor(properties.getProperty("FACE_CLASSIFIER"),
+					properties.getProperty("EYE_CLASSIFIER"));
+		}
+		if (preprocessor != null) {
+			detector.setDetectionSettings(preprocessor.getDetectionSettings());
+		}
+		detector.setAlignFaces(Boolean.parseBoolean(properties.getProperty("ALIGN_FACES", "true")));
+		return detector;
+	}
+
+	/**
+	 * @return a preprocessor whose quality the governor controls, if there is
+	 *         one
+	 */
+	private static FacePreprocessor newGovernedPreprocessor() {
+		FacePreprocessor detector = newPreprocessor();
+		if (governor != null) {
+			governor.addPreprocessor(detector);
+		}
+		return detector;
+	}
+
+	private static FaceTracker newTracker(int detectionInterval) {
+		FaceTracker tracker = new FaceTracker(preprocessor, detectionInterval,
+				getDoubleProperty("TRACKING_MIN_CONFIDENCE", 0.6), getDoubleProperty("TRACKING_SEARCH_MARGIN", 0.5));
+		if (governor != null) {
+			governor.addTracker(tracker);
+		}
+		if (Boolean.parseBoolean(properties.getProperty("MOTION_GATE"))) {
+			tracker.setMotionGate(new MotionGate(getDoubleProperty("MOTION_THRESHOLD", 25),
+					getDoubleProperty("MOTION_MIN_AREA", 0.001), getIntProperty("MOTION_FULL_DETECTION_FRAMES", 150),
+					getRegions("MOTION_ROIS"), getRegions("MOTION_IGNORE")));
+		}
+		return tracker;
+	}
+
+	/**
+	 * @return the regions of a property, x,y,width,height in frame pixels and
+	 *         separated by semicolons
+	 */
+	private static List<Rect> getRegions(String key) {
+		List<Rect> regions = new ArrayList<>();
+		for (String region : properties.getProperty(key, "").split(";")) {
+			if (region.trim().isEmpty()) {
+				continue;
+			}
+			String[] values = region.split(",");
+			try {
+				regions.add(new Rect(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()),
+						Integer.parseInt(values[2].trim()), Integer.parseInt(values[3].trim())));
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				System.err.println("Ignoring the region \"" + region + "\" of " + key + ", expected x,y,width,height");
 			}
 		}
-		grabber.flush();
-		grabber.release();
-		grabber.close();
+		return regions;
+	}
+
+	private static void printPreprocessingStatistics() {
+		System.out.println(FacePreprocessor.getAlignmentStatistics());
+		if (faceCascades != null) {
+			System.out.println(faceCascades);
+			System.out.println(eyeCascades);
+		}
 	}
 
 	private static RecognizerType getRecognizerType() {
@@ -113,12 +653,48 @@ public class FaceRecognizer {
 		return null;
 	}
 
+	/**
+	 * Converts the frame of the task to the equalized gray image that
+	 * detection works on. A frame decoded as gray only needs equalizing.
+	 */
+	static void toGray(FrameTask task) {
+		if (task.videoMat.channels() == 1) {
+			equalizeHist(task.videoMat, task.videoMatGray);
+			return;
+		}
+		// Convert the current frame to grayscale:
+		cvtColor(task.videoMat, task.videoMatGray, COLOR_BGRA2GRAY);
+		equalizeHist(task.videoMatGray, task.videoMatGray);
+	}
+
+	/**
+	 * Applies the decode settings: the size FFmpeg scales the frames to,
+	 * VIDEO_WIDTH x VIDEO_HEIGHT or the size of the video if either is 0;
+	 * DECODE_GRAY to decode the luma plane only; and DECODE_THREADS, the
+	 * decoder threads, FFmpeg's choice if empty.
+	 */
+	public static void configureGrabber(FFmpegFrameGrabber grabber) {
+		int width = getIntProperty("VIDEO_WIDTH", 900);
+		int height = getIntProperty("VIDEO_HEIGHT", 700);
+		if (width > 0 && height > 0) {
+			grabber.setImageWidth(width);
+			grabber.setImageHeight(height);
+		}
+		if (Boolean.parseBoolean(properties.getProperty("DECODE_GRAY"))) {
+			// FFmpeg converts straight to 8 bit gray, skipping the colour planes
+			grabber.setImageMode(FrameGrabber.ImageMode.GRAY);
+		}
+		String threads = properties.getProperty("DECODE_THREADS", "").trim();
+		if (!threads.isEmpty()) {
+			grabber.setVideoOption("threads", threads);
+		}
+	}
+
 	private static FFmpegFrameGrabber initializeFrameGrabber() {
 		FFmpegFrameGrabber grabber = null;
 		try {
 			grabber = new FFmpegFrameGrabber(new File(properties.getProperty("VIDEO_FILE")));
-			grabber.setImageHeight(700);
-			grabber.setImageWidth(900);
+			configureGrabber(grabber);
 			grabber.start();
 		} catch (Exception e) {
 			System.err.println("Failed start the grabber.");
@@ -126,10 +702,171 @@ public class FaceRecognizer {
 		return grabber;
 	}
 
+	private static String modelFile(RecognizerType type) {
+		return "resources/models/" + type.getName() + "_Trained";
+	}
+
+	/**
+	 * FAST_START: loads the saved model and the cascades at the same time,
+	 * and meanwhile opens the video and grabs its first frame. Evaluation
+	 * follows EVALUATE_ON_STARTUP as usual, "background" keeps it out of the
+	 * way of the video.
+	 *
+	 * @return the started grabber of VIDEO_FILE, null if openVideo is false
+	 */
+	private static FFmpegFrameGrabber fastStart(RecognizerType type, boolean openVideo) {
+		ExecutorService startup = Executors.newFixedThreadPool(2, runnable -> {
+			Thread thread = new Thread(runnable, "startup");
+			thread.setDaemon(true);
+			return thread;
+		});
+		FFmpegFrameGrabber grabber = null;
+		try {
+			Future<Long> detectors = startup.submit(() -> {
+				long start = System.nanoTime();
+				loadDetectors();
+				return System.nanoTime() - start;
+			});
+			Future<Long> model = startup.submit(() -> {
+				long start = System.nanoTime();
+				mainRecognizer = loadRecognizer(type);
+				return System.nanoTime() - start;
+			});
+
+			long videoStart = System.nanoTime();
+			if (openVideo) {
+				grabber = initializeFrameGrabber();
+				prefetchFrame(grabber);
+			}
+			long videoNanos = System.nanoTime() - videoStart;
+
+			long detectorNanos = detectors.get();
+			long modelNanos = model.get();
+			System.out.println(String.format(
+					"Fast start: cascades %.2f s, model %.2f s, video %.2f s, all in %.2f s", detectorNanos / 1e9,
+					modelNanos / 1e9, videoNanos / 1e9, (System.nanoTime() - startNanos) / 1e9));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.exit(1);
+		} catch (ExecutionException e) {
+			System.err.println("Failed to start: " + e.getCause());
+			System.exit(1);
+		} finally {
+			startup.shutdown();
+		}
+
+		if (preprocessor.isAlignFaces() && faceCascades != null) {
+			// evaluate on faces aligned like the ones of the video
+			mainRecognizer.setAligner(newPreprocessor());
+		}
+		evaluate();
+		return grabber;
+	}
+
+	private static void prefetchFrame(FFmpegFrameGrabber grabber) {
+		if (grabber == null) {
+			return;
+		}
+		try {
+			Frame frame = grabber.grabImage();
+			if (frame != null && frame.image != null) {
+				prefetchedFrame = new OpenCVFrameConverter.ToMat().convert(frame).clone();
+				prefetchedTimestamp = grabber.getTimestamp();
+			}
+		} catch (Exception e) {
+			System.err.println("Failed to grab the first frame: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return a recognizer set up from the properties, not trained yet
+	 */
+	private static DeltaFacer newRecognizer(RecognizerType type) {
+		DeltaFacer recognizer = new DeltaFacer(type);
+		recognizer.setLoaderThreads(getIntProperty("LOADER_THREADS", Runtime.getRuntime().availableProcessors()));
+		String featureCache = properties.getProperty("FEATURE_CACHE", "").trim();
+		if (!featureCache.isEmpty()) {
+			recognizer.setFeatureCache(Paths.get(featureCache));
+		}
+		return recognizer;
+	}
+
+	/**
+	 * @return the recognizer saved in its model file, with its index if
+	 *         ANN_INDEX is set
+	 */
+	private static DeltaFacer loadRecognizer(RecognizerType type) {
+		DeltaFacer recognizer = newRecognizer(type);
+		System.out.println("Loading " + type.getName() + " recognizer from " + modelFile(type));
+		recognizer.load(modelFile(type), properties.getProperty("TRAINING_DATA"));
+		buildAnnIndex(recognizer);
+		return recognizer;
+	}
+
+	private static void buildAnnIndex(DeltaFacer recognizer) {
+		if (Boolean.parseBoolean(properties.getProperty("ANN_INDEX"))) {
+			recognizer.buildAnnIndex(getIntProperty("ANN_M", 16), getIntProperty("ANN_EF_CONSTRUCTION", 100),
+					getIntProperty("ANN_EF_SEARCH", 50));
+		}
+	}
+
+	/**
+	 * Prints the confusion matrix of the test set as EVALUATE_ON_STARTUP
+	 * says: before the video starts (true), on a background thread while it
+	 * runs (background), or not at all (false).
+	 */
+	private static void evaluate() {
+		String mode = properties.getProperty("EVALUATE_ON_STARTUP", "true").trim();
+		if (mode.equalsIgnoreCase("false")) {
+			return;
+		}
+		DeltaFacer recognizer = mainRecognizer;
+		Runnable evaluation = () -> {
+			String trainingData = properties.getProperty("TRAINING_DATA");
+			if (!recognizer.hasTestSet() && trainingData != null && new File(trainingData).isDirectory()) {
+				// the model bundle doesn't need the data set, but evaluate with it when it's here
+				try {
+					recognizer.loadTestSet(trainingData);
+				} catch (IOException e) {
+					System.out.println("Failed to list test images: " + e.getMessage());
+				}
+			}
+			recognizer.printConfusionMat(
+					getIntProperty("EVALUATION_WORKERS", Runtime.getRuntime().availableProcessors()),
+					Boolean.parseBoolean(properties.getProperty("EVALUATION_VERBOSE")));
+		};
+		if (mode.equalsIgnoreCase("background")) {
+			Thread thread = new Thread(evaluation, "evaluation");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+		} else {
+			evaluation.run();
+		}
+	}
+
+	/**
+	 * Prints how long it took from start to the first frame with its faces
+	 * recognized, once.
+	 */
+	private static void recordFirstFrame() {
+		if (!firstFrameRecognized.compareAndSet(false, true)) {
+			return;
+		}
+		long nanos = System.nanoTime() - startNanos;
+		Metrics.gauge("startup.first_frame_ms", () -> nanos / 1_000_000);
+		System.out.println(String.format("First frame recognized %.2f s after start, %.2f s after the JVM started",
+				nanos / 1e9, ManagementFactory.getRuntimeMXBean().getUptime() / 1e3));
+	}
+
 	private static boolean setupRecognizer(RecognizerType type, boolean loadFromFile) {
-		mainRecognizer = new DeltaFacer(type);
+		mainRecognizer = newRecognizer(type);
+		if (preprocessor.isAlignFaces() && faceCascades != null) {
+			// train and evaluate on faces aligned like the ones of the video
+			mainRecognizer.setAligner(newPreprocessor());
+		}
 		String trainingData = properties.getProperty("TRAINING_DATA");
-		String fileName = "resources/models/" + type.getName() + "_Trained";
+		String fileName = modelFile(type);
 
 		File f = new File(fileName);
 
@@ -146,23 +883,37 @@ public class FaceRecognizer {
 			mainRecognizer.train(trainingData);
 		}
 
+		buildAnnIndex(mainRecognizer);
+
 		// print the confusion matrix
-		mainRecognizer.printConfusionMat();
+		evaluate();
 		return !(loadFromFile && f.exists());
 	}
 
 	public static void loadApplicationProperties() {
+		loadProperties();
+		loadDetectors();
+	}
+
+	private static void loadProperties() {
 		InputStream inStream = FaceRecognizer.class.getResourceAsStream("/application.properties");
 		properties = new Properties();
 		try {
 			properties.load(inStream);
-			faceClassifier = new CascadeClassifier(properties.getProperty("FACE_CLASSIFIER"));
-			eyeClassifier = new CascadeClassifier(properties.getProperty("EYE_CLASSIFIER"));
-			preprocessor = new FacePreprocessor(faceClassifier, eyeClassifier);
 		} catch (IOException e) {
 			System.out.println("Error while loading the system properties");
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Loads the cascades and sets up the shared preprocessor.
+	 */
+	private static void loadDetectors() {
+		loadCascades();
+		FacePreprocessor detector = newPreprocessor();
+		detector.setDetectionSettings(readDetectionSettings());
+		preprocessor = detector;
+	}
+
 }
@@ -0,0 +1,248 @@
+package application.facedetection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import application.metrics.LatencyHistogram;
+import application.metrics.Metrics;
+
+/**
+ * Staged frame processing. Frames produced by a {@link FrameSource} flow
+ * through a chain of stages connected by bounded queues; a stage that falls
+ * behind fills its input queue, which blocks the stages before it
+ * (backpressure). Stages may run several workers, in which case frames can
+ * overtake each other; an ordered stage puts them back in sequence before
+ * processing them, so the last stage always sees frames in order.
+ *
+ * The number of frames in flight is bounded by the queues, so the tasks
+ * carrying them are pooled: the last stage hands each task back to the
+ * source together with its native buffers instead of releasing it.
+ *
+ * The time of every grab and every stage goes into the {@link Metrics}
+ * histograms decode and stage.&lt;name&gt;, the depth of every input queue
+ * into the gauge queue.&lt;name&gt;.
+ */
+public class FramePipeline {
+
+	/**
+	 * Produces frames for the pipeline.
+	 */
+	public interface FrameSource {
+		/**
+		 * Fills in the given task with the next frame.
+		 *
+		 * @return false once the source is exhausted
+		 */
+		boolean grab(FrameTask task) throws Exception;
+	}
+
+	/**
+	 * Processing done by one worker of a stage. A worker is only ever called
+	 * from its own thread, so it may keep per-thread state.
+	 */
+	public interface StageWorker {
+		void process(FrameTask task) throws Exception;
+	}
+
+	private static class Stage {
+		final String name;
+		final int workers;
+		final boolean ordered;
+		final Supplier<StageWorker> factory;
+		final BlockingQueue<FrameTask> input;
+		final AtomicInteger running;
+		final LatencyHistogram latency;
+		final LongAdder errors;
+
+		Stage(String name, int workers, boolean ordered, Supplier<StageWorker> factory, int capacity) {
+			this.name = name;
+			this.workers = ordered ? 1 : Math.max(1, workers);
+			this.ordered = ordered;
+			this.factory = factory;
+			this.input = new ArrayBlockingQueue<>(capacity);
+			this.running = new AtomicInteger(this.workers);
+			this.latency = Metrics.histogram("stage." + name);
+			this.errors = Metrics.counter("errors." + name);
+		}
+	}
+
+	private final int queueCapacity;
+	private final List<Stage> stages = new ArrayList<>();
+	private BlockingQueue<FrameTask> pool;
+	private volatile boolean stopped = false;
+
+	public FramePipeline(int queueCapacity) {
+		this.queueCapacity = Math.max(1, queueCapacity);
+	}
+
+	/**
+	 * Adds a stage whose frames may be processed by several workers at once,
+	 * and therefore out of order.
+	 */
+	public FramePipeline addStage(String name, int workers, Supplier<StageWorker> factory) {
+		stages.add(new Stage(name, workers, false, factory, queueCapacity));
+		return this;
+	}
+
+	/**
+	 * Adds a single worker stage that receives frames strictly in order.
+	 */
+	public FramePipeline addOrderedStage(String name, Supplier<StageWorker> factory) {
+		stages.add(new Stage(name, 1, true, factory, queueCapacity));
+		return this;
+	}
+
+	/**
+	 * Asks the source to stop producing frames. Frames already in flight are
+	 * still drained through the remaining stages.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Runs the pipeline on the calling thread (which does the decoding) until
+	 * the source is exhausted or {@link #stop()} is called, then waits for all
+	 * stages to drain.
+	 */
+	public void run(FrameSource source) throws InterruptedException {
+		if (stages.isEmpty()) {
+			throw new IllegalStateException("The pipeline has no stages.");
+		}
+
+		// every queue full, every worker busy and one frame being grabbed
+		int maxInFlight = 1;
+		for (Stage stage : stages) {
+			maxInFlight += queueCapacity + stage.workers;
+		}
+		pool = new ArrayBlockingQueue<>(maxInFlight);
+		for (Stage stage : stages) {
+			Metrics.gauge("queue." + stage.name, stage.input::size);
+		}
+		LatencyHistogram decode = Metrics.histogram("decode");
+		LongAdder frames = Metrics.counter("frames");
+
+		List<Thread> threads = new ArrayList<>();
+		for (int s = 0; s < stages.size(); s++) {
+			Stage stage = stages.get(s);
+			BlockingQueue<FrameTask> output = s + 1 < stages.size() ? stages.get(s + 1).input : null;
+			for (int w = 0; w < stage.workers; w++) {
+				Thread thread = new Thread(() -> work(stage, output), stage.name + "-" + w);
+				thread.setDaemon(true);
+				thread.start();
+				threads.add(thread);
+			}
+		}
+
+		BlockingQueue<FrameTask> first = stages.get(0).input;
+		long sequence = 0;
+		while (!stopped) {
+			FrameTask task = pool.poll();
+			if (task == null) {
+				task = new FrameTask(sequence);
+			} else {
+				task.reset(sequence);
+			}
+			boolean grabbed;
+			long start = System.nanoTime();
+			task.grabbedAt = start;
+			try {
+				grabbed = source.grab(task);
+			} catch (Exception e) {
+				System.err.println("Failed to grab frame " + sequence + ": " + e.getMessage());
+				grabbed = false;
+			}
+			if (!grabbed) {
+				recycle(task);
+				break;
+			}
+			decode.recordSince(start);
+			frames.increment();
+			first.put(task);
+			sequence++;
+		}
+		first.put(FrameTask.endOfStream(sequence));
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		for (Stage stage : stages) {
+			Metrics.removeGauge("queue." + stage.name);
+		}
+		for (FrameTask task : pool) {
+			task.release();
+		}
+		pool.clear();
+	}
+
+	private void recycle(FrameTask task) {
+		if (!pool.offer(task)) {
+			task.release();
+		}
+	}
+
+	private void work(Stage stage, BlockingQueue<FrameTask> output) {
+		StageWorker worker = stage.factory.get();
+		PriorityQueue<FrameTask> pending = new PriorityQueue<>();
+		long nextSequence = 0;
+		try {
+			while (true) {
+				FrameTask task = stage.input.take();
+
+				if (stage.ordered) {
+					// hold back frames that overtook earlier ones
+					pending.add(task);
+					while (!pending.isEmpty() && pending.peek().sequence == nextSequence) {
+						task = pending.poll();
+						nextSequence++;
+						if (!handle(stage, worker, task, output)) {
+							return;
+						}
+					}
+				} else if (!handle(stage, worker, task, output)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return false if the worker should exit
+	 */
+	private boolean handle(Stage stage, StageWorker worker, FrameTask task, BlockingQueue<FrameTask> output)
+			throws InterruptedException {
+		if (task.endOfStream) {
+			if (stage.running.decrementAndGet() > 0) {
+				// let the other workers of this stage see the end of the stream
+				stage.input.put(task);
+			} else if (output != null) {
+				output.put(task);
+			}
+			return false;
+		}
+
+		long start = System.nanoTime();
+		try {
+			worker.process(task);
+		} catch (Exception e) {
+			stage.errors.increment();
+			System.err.println("Stage " + stage.name + " failed on frame " + task.sequence + ": " + e.getMessage());
+		}
+		stage.latency.recordSince(start);
+
+		if (output != null) {
+			output.put(task);
+		} else {
+			recycle(task);
+		}
+		return true;
+	}
+}
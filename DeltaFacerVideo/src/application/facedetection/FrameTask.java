@@ -0,0 +1,94 @@
+package application.facedetection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.RectVector;
+
+/**
+ * A single video frame travelling through the {@link FramePipeline}. Every
+ * stage reads what the previous stages filled in and adds its own results.
+ *
+ * Tasks are recycled by the pipeline once the last stage is done with them.
+ * The native buffers are kept and overwritten by the next frame, so a
+ * running pipeline stops allocating native memory once every buffer has
+ * reached the size of the frames and faces it holds.
+ */
+public class FrameTask implements Comparable<FrameTask> {
+
+	private static final int[] NO_INTS = new int[0];
+	private static final double[] NO_DOUBLES = new double[0];
+	private static final String[] NO_NAMES = new String[0];
+
+	long sequence;
+	final boolean endOfStream;
+	// System.nanoTime() when the frame was grabbed
+	long grabbedAt;
+	// position of the frame in the video, in microseconds
+	long timestamp;
+
+	Mat videoMat = new Mat();
+	Mat videoMatGray = new Mat();
+	RectVector faceRects = new RectVector();
+	// face crops owned by the task; faces is a view of the ones in use
+	final List<Mat> faceBuffers = new ArrayList<>();
+	List<Mat> faces = Collections.emptyList();
+	int[] trackIds = NO_INTS;
+	double[] trackConfidences = NO_DOUBLES;
+	int[] endedTracks = NO_INTS;
+	String[] names = NO_NAMES;
+	double[] confidences = NO_DOUBLES;
+
+	FrameTask(long sequence) {
+		this(sequence, false);
+	}
+
+	private FrameTask(long sequence, boolean endOfStream) {
+		this.sequence = sequence;
+		this.endOfStream = endOfStream;
+	}
+
+	/**
+	 * @return marker task queued after the last frame of a stream
+	 */
+	static FrameTask endOfStream(long sequence) {
+		return new FrameTask(sequence, true);
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Readies a recycled task for another frame, keeping its buffers.
+	 */
+	void reset(long sequence) {
+		this.sequence = sequence;
+		faceRects.resize(0);
+		faces = Collections.emptyList();
+		trackIds = NO_INTS;
+		trackConfidences = NO_DOUBLES;
+		endedTracks = NO_INTS;
+		names = NO_NAMES;
+		confidences = NO_DOUBLES;
+	}
+
+	/**
+	 * Releases the native memory held by this frame.
+	 */
+	void release() {
+		videoMat.release();
+		videoMatGray.release();
+		faceRects.close();
+		for (Mat face : faceBuffers) {
+			face.release();
+		}
+	}
+
+	@Override
+	public int compareTo(FrameTask other) {
+		return Long.compare(sequence, other.sequence);
+	}
+}
@@ -0,0 +1,322 @@
+package application.facedetection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import application.metrics.LatencyHistogram;
+import application.metrics.Metrics;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+
+/**
+ * Processes several video streams in one process. Every stream is decoded on
+ * a thread of its own (a virtual thread where the JVM has them) into a small
+ * bounded queue. A fixed pool of workers, shared by all streams, takes the
+ * frames off the queues. The frames of one stream are processed by one
+ * worker at a time and in order, so a stream can keep state such as a face
+ * tracker from frame to frame, while different streams are processed in
+ * parallel.
+ *
+ * A stream whose workers fall behind fills its queue, which blocks its
+ * decoder; the lag between grabbing a frame and finishing it shows how far
+ * behind a stream is. Frames per second and lag are printed for every stream
+ * every few seconds, and the same figures go into the {@link Metrics} under
+ * stream.&lt;name&gt;.
+ *
+ * Decoding runs in native code, which keeps a virtual thread on its carrier
+ * for as long as it runs; with many more streams than cores, platform
+ * threads may decode more smoothly.
+ */
+public class MultiStreamProcessor {
+
+	private static final long REPORT_INTERVAL_SECONDS = 5;
+	// frames a worker takes from one stream before giving the others a turn
+	private static final int FRAMES_PER_TURN = 4;
+
+	private class Stream {
+		final String name;
+		final String url;
+		final BlockingQueue<FrameTask> frames;
+		final BlockingQueue<FrameTask> pool;
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		volatile boolean decoding = true;
+		// no worker could be made; the stream's frames are dropped
+		volatile boolean failed = false;
+		FramePipeline.StageWorker worker;
+
+		final AtomicLong decoded = new AtomicLong();
+		final AtomicLong processed = new AtomicLong();
+		final AtomicLong lagNanos = new AtomicLong();
+		final AtomicLong maxLagNanos = new AtomicLong();
+		final LatencyHistogram decodeLatency;
+		final LatencyHistogram processLatency;
+		final LatencyHistogram lagLatency;
+
+		Stream(String name, String url) {
+			this.name = name;
+			this.url = url;
+			this.frames = new ArrayBlockingQueue<>(queueCapacity);
+			// every queued frame, the one being decoded and the one being processed
+			this.pool = new ArrayBlockingQueue<>(queueCapacity + 2);
+			this.decodeLatency = Metrics.histogram("stream." + name + ".decode");
+			this.processLatency = Metrics.histogram("stream." + name + ".process");
+			this.lagLatency = Metrics.histogram("stream." + name + ".lag");
+			Metrics.gauge("queue." + name, frames::size);
+		}
+	}
+
+	private final int workers;
+	private final int queueCapacity;
+	private final Consumer<FFmpegFrameGrabber> grabberSettings;
+	private final boolean virtualThreads;
+	private final Function<String, FramePipeline.StageWorker> workerFactory;
+	private final List<Stream> streams = new ArrayList<>();
+	private final AtomicInteger unfinished = new AtomicInteger();
+	private final CountDownLatch done = new CountDownLatch(1);
+	private ExecutorService pool;
+	private volatile boolean stopped = false;
+	private long start;
+	private long lastReport;
+
+	/**
+	 * @param workers
+	 *            size of the processing pool shared by all streams
+	 * @param queueCapacity
+	 *            frames queued per stream before its decoder blocks
+	 * @param grabberSettings
+	 *            configures the grabber of every stream before it starts
+	 * @param workerFactory
+	 *            creates the processing of one stream, given its name; it is
+	 *            called by one pool thread at a time
+	 */
+	public MultiStreamProcessor(int workers, int queueCapacity, Consumer<FFmpegFrameGrabber> grabberSettings,
+			boolean virtualThreads, Function<String, FramePipeline.StageWorker> workerFactory) {
+		this.workers = Math.max(1, workers);
+		this.queueCapacity = Math.max(1, queueCapacity);
+		this.grabberSettings = grabberSettings;
+		this.virtualThreads = virtualThreads;
+		this.workerFactory = workerFactory;
+	}
+
+	public MultiStreamProcessor addStream(String name, String url) {
+		streams.add(new Stream(name, url));
+		return this;
+	}
+
+	/**
+	 * Stops decoding; frames already queued are still processed.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Decodes and processes all streams until every one of them has ended or
+	 * {@link #stop()} is called.
+	 */
+	public void run() throws InterruptedException {
+		if (streams.isEmpty()) {
+			throw new IllegalStateException("No streams to process.");
+		}
+		pool = Executors.newFixedThreadPool(workers, runnable -> {
+			Thread thread = new Thread(runnable, "stream-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		start = System.nanoTime();
+		lastReport = start;
+		Reporter reporter = new Reporter();
+		reporter.start();
+
+		unfinished.set(streams.size());
+		List<Thread> decoders = new ArrayList<>();
+		for (Stream stream : streams) {
+			Thread decoder = newThread(() -> decode(stream), "decode-" + stream.name);
+			decoder.start();
+			decoders.add(decoder);
+		}
+		for (Thread decoder : decoders) {
+			decoder.join();
+		}
+		done.await();
+
+		reporter.interrupt();
+		pool.shutdown();
+		pool.awaitTermination(1, TimeUnit.MINUTES);
+		for (Stream stream : streams) {
+			for (FrameTask task : stream.pool) {
+				task.release();
+			}
+			stream.pool.clear();
+		}
+		report(true);
+	}
+
+	private void decode(Stream stream) {
+		OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+		try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(stream.url)) {
+			grabberSettings.accept(grabber);
+			grabber.start();
+			long sequence = 0;
+			while (!stopped && !stream.failed) {
+				long start = System.nanoTime();
+				Frame frame = grabber.grabImage();
+				if (frame == null || frame.image == null) {
+					break;
+				}
+				stream.decodeLatency.recordSince(start);
+				FrameTask task = stream.pool.poll();
+				if (task == null) {
+					task = new FrameTask(sequence);
+				} else {
+					task.reset(sequence);
+				}
+				// the grabber reuses its buffer for the next frame
+				converter.convert(frame).copyTo(task.videoMat);
+				task.grabbedAt = System.nanoTime();
+				task.timestamp = grabber.getTimestamp();
+				stream.frames.put(task);
+				stream.decoded.incrementAndGet();
+				schedule(stream);
+				sequence++;
+			}
+			grabber.stop();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			System.err.println("Stream " + stream.name + " failed: " + e.getMessage());
+		} finally {
+			stream.decoding = false;
+			// lets a worker see the end of the stream even if nothing is queued
+			schedule(stream);
+		}
+	}
+
+	private void schedule(Stream stream) {
+		if (stream.scheduled.compareAndSet(false, true)) {
+			pool.execute(() -> drain(stream));
+		}
+	}
+
+	/**
+	 * Processes a few frames of the stream; only one worker at a time does
+	 * this for a given stream.
+	 */
+	private void drain(Stream stream) {
+		try {
+			if (stream.worker == null && !stream.failed) {
+				try {
+					stream.worker = workerFactory.apply(stream.name);
+				} catch (RuntimeException e) {
+					System.err.println("Stream " + stream.name + " failed to start: " + e.getMessage());
+					stream.failed = true;
+				}
+			}
+			FrameTask task;
+			if (stream.failed) {
+				// frees the decoder if it waits for room, and it then stops
+				while ((task = stream.frames.poll()) != null) {
+					task.release();
+				}
+				return;
+			}
+			for (int i = 0; i < FRAMES_PER_TURN && (task = stream.frames.poll()) != null; i++) {
+				long start = System.nanoTime();
+				try {
+					stream.worker.process(task);
+				} catch (Exception e) {
+					System.err.println("Stream " + stream.name + " failed on frame " + task.sequence + ": "
+							+ e.getMessage());
+				}
+				stream.processLatency.recordSince(start);
+				long lag = System.nanoTime() - task.grabbedAt;
+				stream.lagLatency.record(lag);
+				stream.lagNanos.addAndGet(lag);
+				stream.maxLagNanos.accumulateAndGet(lag, Math::max);
+				stream.processed.incrementAndGet();
+				if (!stream.pool.offer(task)) {
+					task.release();
+				}
+			}
+		} finally {
+			stream.scheduled.set(false);
+			if (!stream.frames.isEmpty()) {
+				schedule(stream);
+			} else if (!stream.decoding && stream.scheduled.compareAndSet(false, true)) {
+				// the decoder has finished and everything it queued is done;
+				// the flag is never cleared again, so this runs once
+				if (unfinished.decrementAndGet() == 0) {
+					done.countDown();
+				}
+			}
+		}
+	}
+
+	private Thread newThread(Runnable runnable, String name) {
+		if (virtualThreads) {
+			try {
+				// Thread.ofVirtual().name(name).unstarted(runnable), Java 21 and later
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+				return (Thread) builderClass.getMethod("unstarted", Runnable.class).invoke(builder, runnable);
+			} catch (ReflectiveOperationException e) {
+				// no virtual threads on this JVM
+			}
+		}
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	private class Reporter extends Thread {
+		Reporter() {
+			super("stream-report");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					TimeUnit.SECONDS.sleep(REPORT_INTERVAL_SECONDS);
+					report(false);
+				}
+			} catch (InterruptedException e) {
+				// run() has finished
+			}
+		}
+	}
+
+	private synchronized void report(boolean last) {
+		long now = System.nanoTime();
+		double seconds = (now - lastReport) / 1e9;
+		lastReport = now;
+		for (Stream stream : streams) {
+			long decoded = stream.decoded.getAndSet(0);
+			long processed = stream.processed.getAndSet(0);
+			long lag = stream.lagNanos.getAndSet(0);
+			long maxLag = stream.maxLagNanos.getAndSet(0);
+			System.out.println(String.format(
+					"Stream %s: %.1f fps decoded, %.1f fps processed, lag %.0f ms average / %.0f ms max, %d queued",
+					stream.name, decoded / seconds, processed / seconds, processed == 0 ? 0 : lag / 1e6 / processed,
+					maxLag / 1e6, stream.frames.size()));
+		}
+		if (last) {
+			System.out.println(String.format("%d streams processed in %.1f s", streams.size(), (now - start) / 1e9));
+		}
+	}
+}
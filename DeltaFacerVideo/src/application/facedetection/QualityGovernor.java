@@ -0,0 +1,181 @@
+package application.facedetection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import application.facerecognizer.DetectionSettings;
+import application.facerecognizer.FacePreprocessor;
+import application.facerecognizer.FaceTracker;
+import application.metrics.LatencyHistogram;
+import application.metrics.Metrics;
+
+/**
+ * Keeps the time from grabbing a frame to finishing it within a budget by
+ * trading quality for speed. Every window of frames, the 90th percentile of
+ * that latency is compared with the budget. Above it, the governor goes one
+ * level down:
+ * <ol>
+ * <li>a coarser step between detection scales</li>
+ * <li>full detection on every other frame only, tracking in between</li>
+ * <li>twice the smallest face size</li>
+ * <li>no alignment</li>
+ * <li>a still coarser scale step and full detection every third frame</li>
+ * </ol>
+ * Well below the budget for a few windows in a row, it goes one level back
+ * up, so that quality only returns when there is room for it. After a
+ * change, one window is left out, as the frames in it were queued before
+ * the change.
+ *
+ * The detection interval only applies where a {@link FaceTracker} is used.
+ * Changes are logged and the level and the frame latency are in the
+ * {@link Metrics} as governor.level and frame.latency.
+ */
+public class QualityGovernor {
+
+	private static final int WINDOW = 30;
+	// restore quality once the latency is below this part of the budget ...
+	private static final double RESTORE_FRACTION = 0.7;
+	// ... for this many windows in a row
+	private static final int RESTORE_WINDOWS = 3;
+
+	/**
+	 * Settings of one quality level.
+	 */
+	private static class Level {
+		final double scaleFactor;
+		final double minFaceSize;
+		final int detectionInterval;
+		final boolean alignFaces;
+
+		Level(double scaleFactor, double minFaceSize, int detectionInterval, boolean alignFaces) {
+			this.scaleFactor = scaleFactor;
+			this.minFaceSize = minFaceSize;
+			this.detectionInterval = detectionInterval;
+			this.alignFaces = alignFaces;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("scale step %.2f, faces from %.1f%%, detection every %d frames, alignment %s",
+					scaleFactor, 100 * minFaceSize, detectionInterval, alignFaces ? "on" : "off");
+		}
+	}
+
+	private final long budgetNanos;
+	private final DetectionSettings baseSettings;
+	private final List<Level> levels = new ArrayList<>();
+	private final List<FacePreprocessor> preprocessors = new CopyOnWriteArrayList<>();
+	private final List<FaceTracker> trackers = new CopyOnWriteArrayList<>();
+
+	private final long[] window = new long[WINDOW];
+	private int windowSize = 0;
+	private boolean skipWindow = false;
+	private int windowsUnderBudget = 0;
+	private volatile int level = 0;
+
+	private final LatencyHistogram frameLatency = Metrics.histogram("frame.latency");
+	private final LongAdder degraded = Metrics.counter("governor.degraded");
+	private final LongAdder restored = Metrics.counter("governor.restored");
+
+	/**
+	 * @param budgetMillis
+	 *            the longest a frame should take from grab to finish
+	 * @param baseSettings
+	 *            detection settings at full quality
+	 * @param detectionInterval
+	 *            detection interval at full quality
+	 * @param alignFaces
+	 *            whether faces are aligned at full quality
+	 */
+	public QualityGovernor(double budgetMillis, DetectionSettings baseSettings, int detectionInterval,
+			boolean alignFaces) {
+		this.budgetNanos = (long) (budgetMillis * 1e6);
+		this.baseSettings = baseSettings;
+
+		double scale = baseSettings.getScaleFactor();
+		double minFace = baseSettings.getMinFaceSize();
+		int interval = Math.max(1, detectionInterval);
+		levels.add(new Level(scale, minFace, interval, alignFaces));
+		levels.add(new Level(Math.max(scale, 1.1), minFace, interval, alignFaces));
+		levels.add(new Level(Math.max(scale, 1.1), minFace, interval * 2, alignFaces));
+		levels.add(new Level(Math.max(scale, 1.1), minFace * 2, interval * 2, alignFaces));
+		levels.add(new Level(Math.max(scale, 1.1), minFace * 2, interval * 2, false));
+		levels.add(new Level(Math.max(scale, 1.2), minFace * 2, interval * 3, false));
+
+		Metrics.gauge("governor.level", () -> level);
+	}
+
+	/**
+	 * Puts the preprocessor under the governor's control, at the current
+	 * level.
+	 */
+	public synchronized void addPreprocessor(FacePreprocessor preprocessor) {
+		preprocessors.add(preprocessor);
+		apply(levels.get(level), preprocessor);
+	}
+
+	public synchronized void addTracker(FaceTracker tracker) {
+		trackers.add(tracker);
+		tracker.setDetectionInterval(levels.get(level).detectionInterval);
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Records the latency of a finished frame; may be called from any thread.
+	 */
+	public synchronized void record(long latencyNanos) {
+		frameLatency.record(latencyNanos);
+		window[windowSize++] = latencyNanos;
+		if (windowSize < WINDOW) {
+			return;
+		}
+		windowSize = 0;
+		if (skipWindow) {
+			skipWindow = false;
+			return;
+		}
+
+		long[] sorted = window.clone();
+		Arrays.sort(sorted);
+		long p90 = sorted[(int) (WINDOW * 0.9)];
+		if (p90 > budgetNanos && level < levels.size() - 1) {
+			windowsUnderBudget = 0;
+			change(level + 1, p90);
+			degraded.increment();
+		} else if (p90 < budgetNanos * RESTORE_FRACTION && level > 0) {
+			if (++windowsUnderBudget >= RESTORE_WINDOWS) {
+				windowsUnderBudget = 0;
+				change(level - 1, p90);
+				restored.increment();
+			}
+		} else {
+			windowsUnderBudget = 0;
+		}
+	}
+
+	private void change(int newLevel, long p90) {
+		Level settings = levels.get(newLevel);
+		System.out.println(String.format("Quality level %d -> %d, p90 %.1f ms against a budget of %.1f ms: %s",
+				level, newLevel, p90 / 1e6, budgetNanos / 1e6, settings));
+		level = newLevel;
+		for (FacePreprocessor preprocessor : preprocessors) {
+			apply(settings, preprocessor);
+		}
+		for (FaceTracker tracker : trackers) {
+			tracker.setDetectionInterval(settings.detectionInterval);
+		}
+		skipWindow = true;
+	}
+
+	private void apply(Level settings, FacePreprocessor preprocessor) {
+		preprocessor.setDetectionSettings(
+				baseSettings.withScaleFactor(settings.scaleFactor).withMinFaceSize(settings.minFaceSize));
+		preprocessor.setAlignFaces(settings.alignFaces);
+	}
+}
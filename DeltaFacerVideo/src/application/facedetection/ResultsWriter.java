@@ -0,0 +1,99 @@
+package application.facedetection;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+import org.bytedeco.javacpp.opencv_core.Rect;
+
+/**
+ * Writes the faces found in every frame to a file, as CSV (one row per face)
+ * or as JSON lines (one object per frame, including frames without faces).
+ * The format follows the file extension: .csv for CSV, anything else for
+ * JSON lines.
+ */
+public class ResultsWriter implements AutoCloseable {
+
+	private final BufferedWriter out;
+	private final boolean csv;
+
+	public ResultsWriter(String file) throws IOException {
+		this.out = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8);
+		this.csv = file.toLowerCase(Locale.ROOT).endsWith(".csv");
+		if (csv) {
+			out.write("frame,time_ms,track,x,y,width,height,label,confidence");
+			out.newLine();
+		}
+	}
+
+	/**
+	 * Writes the faces and labels of a frame that went through recognition.
+	 */
+	public void write(FrameTask task) throws IOException {
+		double timeMillis = task.timestamp / 1000.0;
+		StringBuilder line = new StringBuilder(128);
+		if (!csv) {
+			line.append("{\"frame\":").append(task.sequence);
+			line.append(",\"time_ms\":").append(String.format(Locale.ROOT, "%.1f", timeMillis));
+			line.append(",\"faces\":[");
+		}
+		for (int i = 0; i < task.names.length; i++) {
+			int track = i < task.trackIds.length ? task.trackIds[i] : -1;
+			double confidence = i < task.confidences.length ? task.confidences[i] : Double.NaN;
+			try (Rect rect = task.faceRects.get(i)) {
+				if (csv) {
+					line.append(task.sequence).append(',');
+					line.append(String.format(Locale.ROOT, "%.1f", timeMillis)).append(',');
+					line.append(track).append(',');
+					line.append(rect.x()).append(',').append(rect.y()).append(',');
+					line.append(rect.width()).append(',').append(rect.height()).append(',');
+					line.append(csvField(task.names[i])).append(',');
+					line.append(String.format(Locale.ROOT, "%.2f", confidence)).append('\n');
+				} else {
+					line.append(i == 0 ? "{" : ",{");
+					line.append("\"track\":").append(track);
+					line.append(",\"x\":").append(rect.x()).append(",\"y\":").append(rect.y());
+					line.append(",\"width\":").append(rect.width()).append(",\"height\":").append(rect.height());
+					line.append(",\"label\":").append(jsonString(task.names[i]));
+					line.append(",\"confidence\":").append(Double.isNaN(confidence) ? "null"
+							: String.format(Locale.ROOT, "%.2f", confidence));
+					line.append('}');
+				}
+			}
+		}
+		if (!csv) {
+			line.append("]}\n");
+		}
+		out.write(line.toString());
+	}
+
+	private static String csvField(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	private static String jsonString(String value) {
+		StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"').toString();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,117 @@
+package application.facerecognizer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bytedeco.javacpp.opencv_core.FileNode;
+import org.bytedeco.javacpp.opencv_core.FileStorage;
+import org.bytedeco.javacpp.opencv_objdetect.CascadeClassifier;
+
+/**
+ * A fixed number of instances of one cascade. A CascadeClassifier must not
+ * be used by two threads at once, so a thread borrows an instance for the
+ * time it detects and gives it back. The XML file is read from disk once;
+ * every instance is parsed from the copy in memory.
+ *
+ * Counts how often a thread had to wait for an instance and for how long,
+ * which shows whether the pool is too small for the threads using it.
+ */
+public class CascadePool {
+
+	private final String file;
+	private final BlockingQueue<CascadeClassifier> idle;
+	private final int size;
+
+	private final LongAdder acquired = new LongAdder();
+	private final LongAdder waited = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+
+	public CascadePool(String file, int size) throws IOException {
+		this.file = file;
+		this.size = Math.max(1, size);
+		this.idle = new ArrayBlockingQueue<>(this.size);
+
+		String xml = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+		try (FileStorage storage = new FileStorage(xml, FileStorage.READ | FileStorage.MEMORY)) {
+			for (int i = 0; i < this.size; i++) {
+				idle.add(newClassifier(storage));
+			}
+		}
+	}
+
+	private CascadeClassifier newClassifier(FileStorage storage) throws IOException {
+		CascadeClassifier classifier = new CascadeClassifier();
+		try (FileNode node = storage.getFirstTopLevelNode()) {
+			// only the current cascade format can be read from a node, the old
+			// Haar format has to be loaded from the file
+			if (classifier.read(node) || classifier.load(file)) {
+				return classifier;
+			}
+		}
+		classifier.close();
+		throw new IOException("Failed to load the cascade " + file);
+	}
+
+	/**
+	 * Borrows an instance, waiting for one if they are all in use. It has to
+	 * be given back with {@link #release(CascadeClassifier)}.
+	 */
+	public CascadeClassifier acquire() {
+		acquired.increment();
+		CascadeClassifier classifier = idle.poll();
+		if (classifier != null) {
+			return classifier;
+		}
+
+		waited.increment();
+		long start = System.nanoTime();
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return idle.take();
+				} catch (InterruptedException e) {
+					// the caller has no way to go on without a classifier
+					interrupted = true;
+				}
+			}
+		} finally {
+			waitNanos.add(System.nanoTime() - start);
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public void release(CascadeClassifier classifier) {
+		idle.offer(classifier);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Closes the instances; all of them have to have been given back.
+	 */
+	public void close() {
+		CascadeClassifier classifier;
+		while ((classifier = idle.poll()) != null) {
+			classifier.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		long total = acquired.sum();
+		long contended = waited.sum();
+		return String.format("%s: %d instances, %d borrowed, %.1f%% had to wait, %.3f ms average wait",
+				Paths.get(file).getFileName(), size, total, total == 0 ? 0 : 100.0 * contended / total,
+				contended == 0 ? 0 : waitNanos.sum() / 1e6 / contended);
+	}
+}
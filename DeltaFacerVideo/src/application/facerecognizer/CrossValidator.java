@@ -0,0 +1,340 @@
+package application.facerecognizer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import application.metrics.LatencyHistogram;
+
+/**
+ * Compares recognizer settings by k-fold cross-validation. The faces of
+ * every class are dealt out to the folds in turn; each fold is tested once
+ * with a recognizer trained on the others. Every pair of configuration and
+ * fold is trained and tested on a pool thread of its own, and all of them
+ * read the same decoded faces, which are never modified.
+ *
+ * A threshold doesn't change what a recognizer learns, only which of its
+ * predictions count as Unknown, so the thresholds of a configuration are
+ * applied to the predictions of one run instead of being trained for.
+ */
+public class CrossValidator {
+
+	/**
+	 * A recognizer type and the parameters it is set up with.
+	 */
+	public static class Configuration {
+		private final RecognizerType type;
+		private final Map<String, Double> parameters;
+		private final List<Double> thresholds;
+
+		/**
+		 * @param parameters
+		 *            as taken by
+		 *            {@link DeltaFacer#DeltaFacer(RecognizerType, Map)}
+		 * @param thresholds
+		 *            to try on the predictions, none for no threshold
+		 */
+		public Configuration(RecognizerType type, Map<String, Double> parameters, List<Double> thresholds) {
+			this.type = type;
+			this.parameters = parameters;
+			this.thresholds = thresholds;
+		}
+
+		public RecognizerType getType() {
+			return type;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder(type.getName());
+			parameters.forEach((name, value) -> text.append(' ').append(name).append('=')
+					.append(value == Math.rint(value) ? String.valueOf(value.longValue()) : String.valueOf(value)));
+			return text.toString();
+		}
+	}
+
+	/**
+	 * Accuracy and cost of a configuration at one threshold, over all folds.
+	 */
+	public static class Result {
+		private final Configuration configuration;
+		private final double threshold;
+		private final double[] foldAccuracies;
+		private final double rejected;
+		private final double predictMillis;
+		private final double predictP90Millis;
+		private final double trainMillis;
+
+		Result(Configuration configuration, double threshold, double[] foldAccuracies, double rejected,
+				double predictMillis, double predictP90Millis, double trainMillis) {
+			this.configuration = configuration;
+			this.threshold = threshold;
+			this.foldAccuracies = foldAccuracies;
+			this.rejected = rejected;
+			this.predictMillis = predictMillis;
+			this.predictP90Millis = predictP90Millis;
+			this.trainMillis = trainMillis;
+		}
+
+		public Configuration getConfiguration() {
+			return configuration;
+		}
+
+		/**
+		 * @return the threshold, infinite if there is none
+		 */
+		public double getThreshold() {
+			return threshold;
+		}
+
+		public double getAccuracy() {
+			double sum = 0;
+			for (double accuracy : foldAccuracies) {
+				sum += accuracy;
+			}
+			return sum / foldAccuracies.length;
+		}
+
+		/**
+		 * @return standard deviation of the accuracy between folds
+		 */
+		public double getAccuracyDeviation() {
+			double mean = getAccuracy();
+			double sum = 0;
+			for (double accuracy : foldAccuracies) {
+				sum += (accuracy - mean) * (accuracy - mean);
+			}
+			return Math.sqrt(sum / foldAccuracies.length);
+		}
+
+		/**
+		 * @return mean time to predict one face
+		 */
+		public double getPredictMillis() {
+			return predictMillis;
+		}
+
+		@Override
+		public String toString() {
+			String config = configuration.toString();
+			if (!Double.isInfinite(threshold)) {
+				config += " threshold=" + threshold;
+			}
+			return String.format("%-52s %8.2f%% %6.2f %8.1f%% %9.3f %9.3f %9.1f", config, 100 * getAccuracy(),
+					100 * getAccuracyDeviation(), 100 * rejected, predictMillis, predictP90Millis, trainMillis);
+		}
+
+		public static String header() {
+			return String.format("%-52s %9s %6s %9s %9s %9s %9s", "configuration", "accuracy", "+/-", "rejected",
+					"mean ms", "p90 ms", "train ms");
+		}
+	}
+
+	/**
+	 * Predictions of one fold, without a threshold.
+	 */
+	private static class FoldRun {
+		int[] actual;
+		int[] predicted;
+		double[] distances;
+		long trainNanos;
+	}
+
+	private final List<String> classLabels;
+	private final List<Mat> images;
+	private final List<Integer> labels;
+	private final int[] folds;
+	private final int foldCount;
+
+	/**
+	 * @param images
+	 *            decoded faces, all of one size; they are only read
+	 * @param labels
+	 *            class of each face, an index into classLabels
+	 */
+	public CrossValidator(List<String> classLabels, List<Mat> images, List<Integer> labels, int foldCount) {
+		this.classLabels = classLabels;
+		this.images = images;
+		this.labels = labels;
+		this.foldCount = Math.max(2, foldCount);
+		// deal the faces of each class out to the folds in turn, so that
+		// every fold has about the same share of every class
+		this.folds = new int[images.size()];
+		int[] next = new int[classLabels.size()];
+		for (int i = 0; i < folds.length; i++) {
+			folds[i] = next[labels.get(i)]++ % this.foldCount;
+		}
+	}
+
+	/**
+	 * Runs every configuration on every fold, on the given number of
+	 * threads.
+	 *
+	 * @return a result per configuration and threshold, fastest first
+	 */
+	public List<Result> evaluate(List<Configuration> configurations, int threads) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+			Thread thread = new Thread(r, "cross-validation");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Map<Configuration, List<Future<FoldRun>>> runs = new LinkedHashMap<>();
+		try {
+			for (Configuration configuration : configurations) {
+				List<Future<FoldRun>> futures = new ArrayList<>();
+				for (int fold = 0; fold < foldCount; fold++) {
+					int testFold = fold;
+					futures.add(pool.submit(() -> run(configuration, testFold)));
+				}
+				runs.put(configuration, futures);
+			}
+
+			Map<Configuration, List<FoldRun>> foldRuns = new LinkedHashMap<>();
+			for (Map.Entry<Configuration, List<Future<FoldRun>>> entry : runs.entrySet()) {
+				List<FoldRun> configurationRuns = new ArrayList<>();
+				for (Future<FoldRun> future : entry.getValue()) {
+					configurationRuns.add(await(future));
+				}
+				foldRuns.put(entry.getKey(), configurationRuns);
+				System.out.println(String.format("Cross-validated %s", entry.getKey()));
+			}
+
+			// the runs share the cores, which skews their timings, so the
+			// latencies are measured once everything else is done
+			List<Result> results = new ArrayList<>();
+			for (Map.Entry<Configuration, List<FoldRun>> entry : foldRuns.entrySet()) {
+				results.addAll(results(entry.getKey(), entry.getValue(), measureLatency(entry.getKey())));
+			}
+			Collections.sort(results, Comparator.comparingDouble(Result::getPredictMillis));
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private FoldRun run(Configuration configuration, int testFold) throws IOException {
+		List<Mat> trainImages = new ArrayList<>();
+		List<Integer> trainLabels = new ArrayList<>();
+		List<Integer> testIndices = new ArrayList<>();
+		for (int i = 0; i < images.size(); i++) {
+			if (folds[i] == testFold) {
+				testIndices.add(i);
+			} else {
+				trainImages.add(images.get(i));
+				trainLabels.add(labels.get(i));
+			}
+		}
+
+		DeltaFacer recognizer = new DeltaFacer(configuration.type, configuration.parameters);
+		try {
+			FoldRun run = new FoldRun();
+			long start = System.nanoTime();
+			recognizer.train(classLabels, trainImages, trainLabels);
+			run.trainNanos = System.nanoTime() - start;
+
+			run.actual = new int[testIndices.size()];
+			run.predicted = new int[testIndices.size()];
+			run.distances = new double[testIndices.size()];
+			for (int i = 0; i < testIndices.size(); i++) {
+				int index = testIndices.get(i);
+				Prediction prediction = recognizer.predict(images.get(index));
+				run.actual[i] = labels.get(index);
+				run.predicted[i] = prediction.getLabelIndex();
+				run.distances[i] = prediction.getConfidence();
+			}
+			return run;
+		} finally {
+			recognizer.release();
+		}
+	}
+
+	private List<Result> results(Configuration configuration, List<FoldRun> foldRuns, LatencyHistogram latency) {
+		double trainMillis = 0;
+		for (FoldRun run : foldRuns) {
+			trainMillis += run.trainNanos / 1e6 / foldRuns.size();
+		}
+
+		List<Double> thresholds = new ArrayList<>();
+		thresholds.add(Double.POSITIVE_INFINITY);
+		thresholds.addAll(configuration.thresholds);
+		List<Result> results = new ArrayList<>();
+		for (double threshold : thresholds) {
+			double[] accuracies = new double[foldRuns.size()];
+			long rejected = 0;
+			long predictions = 0;
+			for (int f = 0; f < foldRuns.size(); f++) {
+				FoldRun run = foldRuns.get(f);
+				int correct = 0;
+				for (int i = 0; i < run.actual.length; i++) {
+					boolean known = run.predicted[i] >= 0 && run.distances[i] < threshold;
+					if (!known) {
+						rejected++;
+					} else if (run.predicted[i] == run.actual[i]) {
+						correct++;
+					}
+				}
+				predictions += run.actual.length;
+				accuracies[f] = run.actual.length == 0 ? 0 : (double) correct / run.actual.length;
+			}
+			results.add(new Result(configuration, threshold, accuracies,
+					predictions == 0 ? 0 : (double) rejected / predictions, latency.getMeanNanos() / 1e6,
+					latency.getPercentileNanos(90) / 1e6, trainMillis));
+		}
+		return results;
+	}
+
+	/**
+	 * Times the predictions of the first fold on one thread, with nothing
+	 * else running, so that the latencies of different configurations can be
+	 * compared.
+	 */
+	private LatencyHistogram measureLatency(Configuration configuration) {
+		LatencyHistogram latency = new LatencyHistogram();
+		List<Mat> trainImages = new ArrayList<>();
+		List<Integer> trainLabels = new ArrayList<>();
+		List<Mat> testImages = new ArrayList<>();
+		for (int i = 0; i < images.size(); i++) {
+			if (folds[i] == 0) {
+				testImages.add(images.get(i));
+			} else {
+				trainImages.add(images.get(i));
+				trainLabels.add(labels.get(i));
+			}
+		}
+		DeltaFacer recognizer = new DeltaFacer(configuration.type, configuration.parameters);
+		try {
+			recognizer.train(classLabels, trainImages, trainLabels);
+			for (Mat image : testImages) {
+				long start = System.nanoTime();
+				recognizer.predict(image);
+				latency.recordSince(start);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to time " + configuration + ": " + e.getMessage());
+		} finally {
+			recognizer.release();
+		}
+		return latency;
+	}
+
+	private static FoldRun await(Future<FoldRun> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while cross-validating", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+}
@@ -3,75 +3,191 @@ import org.bytedeco.javacpp.*;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+import org.bytedeco.javacpp.indexer.DoubleIndexer;
+import org.bytedeco.javacpp.indexer.IntIndexer;
 
 import static org.bytedeco.javacpp.opencv_core.*;
-import static org.bytedeco.javacpp.opencv_imgcodecs.*;
 import static org.bytedeco.javacpp.opencv_face.*;
 
 
 public class DeltaFacer {
+	// index parameters used when faces are enrolled into a PCA / LDA model
+	// that has no index yet
+	private static final int DEFAULT_ANN_M = 16;
+	private static final int DEFAULT_ANN_EF_CONSTRUCTION = 100;
+	private static final int DEFAULT_ANN_EF_SEARCH = 50;
+	
 	private List<String> classLabels = new ArrayList<String>();
-	// Training set
-	private List<Mat> trainingMats = new ArrayList<Mat>();;
-	private List<Integer> trainingLabels = new ArrayList<Integer>();
-	// Test set
-	private List<Mat> testMats = new ArrayList<Mat>();
-	private List<Integer> testLabels = new ArrayList<Integer>();
+	// Test set, decoded only when it is evaluated
+	private List<FaceDatasetLoader.Sample> testSamples = new ArrayList<FaceDatasetLoader.Sample>();
+	
+	private int _loaderThreads = Runtime.getRuntime().availableProcessors();
+	public void setLoaderThreads(int loaderThreads) { _loaderThreads = loaderThreads; }
 	
 	private RecognizerType _recognizerType;
 	public RecognizerType getRecognizerType() { return _recognizerType; }
 	
+	/**
+	 * Aligns the faces of the data set before training and evaluation. It is
+	 * called from several threads, so it has to be built from cascade pools.
+	 */
+	public void setAligner(FacePreprocessor aligner) { _aligner = aligner; _featureCache = null; }
+	
+	/**
+	 * Keeps the preprocessed faces of the data set, and the MBPH histograms,
+	 * in this folder between runs; null to decode every image every time.
+	 */
+	public void setFeatureCache(Path folder) { _featureCacheFolder = folder; _featureCache = null; }
+	
 	private String _loadFile = "";
 	//public void setLoadFile(String loadFile) { _loadFile = loadFile; }
 	public String getLoadFile(String loadFile) { return _loadFile; }
 	
-	private boolean _isTrained = false;
+	private volatile boolean _isTrained = false;
 	public boolean IsTrained() { return _isTrained; }
 	
+	// changes whenever the native model does, so that copies of it can tell
+	// they are out of date
+	private volatile int _modelVersion = 0;
+	int getModelVersion() { return _modelVersion; }
+	
+	private int _imageWidth = 0;
+	private int _imageHeight = 0;
+	
+	// aligns the training and test faces the way the video pipeline aligns
+	// the faces it recognizes, if set
+	private FacePreprocessor _aligner = null;
+	
+	private Path _featureCacheFolder = null;
+	private FeatureCache _featureCache = null;
+	
 	private opencv_face.FaceRecognizer _model = null;
+	
+	// MBPH keeps its histograms in a memory mapped gallery instead of _model
+	private LbphHistogram _histogram = null;
+	private LbphGallery _gallery = null;
+	private Path _galleryFile = null;
+	// false while the gallery is the file of a saved model, which must not
+	// change underneath it
+	private boolean _galleryIsTemporary = false;
+	private double _threshold = Double.MAX_VALUE;
+	
+	// optional approximate search over the PCA / LDA projections
+	private HnswIndex _annIndex = null;
+	private int _annEfSearch = 0;
+	private Mat _mean = null;
+	private Mat _eigenVectors = null;
+	
+	// faces enrolled into a PCA / LDA model after training; the native model
+	// can't take them, so they only live in the index
+	private List<float[]> _enrolledVectors = new ArrayList<float[]>();
+	private List<Integer> _enrolledLabels = new ArrayList<Integer>();
+	// labels hidden by remove(), their faces stay in the model
+	private Set<Integer> _removedLabels = new HashSet<Integer>();
+	
+	// enroll() and remove() take the write lock, predictions the read lock
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
 
 	public DeltaFacer(RecognizerType recognizerType) {
 		// Setup new face recognizer
 		_recognizerType = recognizerType;
-		switch (_recognizerType)
+		_model = createModel(recognizerType);
+		if (recognizerType == RecognizerType.MBPH) {
+			// same defaults as createLBPHFaceRecognizer()
+			_histogram = new LbphHistogram(1, 8, 8, 8);
+		}
+	}
+	
+	private static opencv_face.FaceRecognizer createModel(RecognizerType recognizerType) {
+		switch (recognizerType)
 		{
 		case PCA:
-			_model = createEigenFaceRecognizer();
-			break;
+			return createEigenFaceRecognizer();
 		case LDA:
-			_model = createFisherFaceRecognizer();
-			break;
+			return createFisherFaceRecognizer();
 		case BPH:
-			_model = createLBPHFaceRecognizer();
-			break;
+			return createLBPHFaceRecognizer();
+		case MBPH:
+			// searched in Java, there is no native model
+			return null;
 		default:
 			System.err.println("Unrecognized Recognizer Type");
+			return null;
 		}
 	}
 	
-	// TODO: doc arguments
+	/**
+	 * @param arg0 number of components for PCA and LDA (0 keeps them all),
+	 *             radius for BPH and MBPH, which keep 8 neighbours on an 8x8 grid
+	 * @param arg1 distance threshold above which a face is Unknown
+	 */
 	public DeltaFacer(RecognizerType recognizerType, int arg0, double arg1) {
-		// Setup new face recognizer with specified input arguments
+		this(recognizerType, parameters(recognizerType, arg0, arg1));
+	}
+	
+	private static Map<String, Double> parameters(RecognizerType recognizerType, int arg0, double arg1) {
+		Map<String, Double> parameters = new LinkedHashMap<String, Double>();
+		if (recognizerType == RecognizerType.PCA || recognizerType == RecognizerType.LDA) {
+			parameters.put("num_components", (double) arg0);
+		} else {
+			parameters.put("radius", (double) arg0);
+		}
+		parameters.put("threshold", arg1);
+		return parameters;
+	}
+	
+	/**
+	 * Sets up a recognizer with the parameters a {@link ModelBundle} keeps:
+	 * num_components and threshold for PCA and LDA; radius, neighbors, grid_x,
+	 * grid_y and threshold for BPH and MBPH. Missing ones take OpenCV's
+	 * defaults.
+	 */
+	public DeltaFacer(RecognizerType recognizerType, Map<String, Double> parameters) {
 		_recognizerType = recognizerType;
+		int components = parameter(parameters, "num_components", 0).intValue();
+		double threshold = parameter(parameters, "threshold", Double.MAX_VALUE);
+		int radius = parameter(parameters, "radius", 1).intValue();
+		int neighbors = parameter(parameters, "neighbors", 8).intValue();
+		int gridX = parameter(parameters, "grid_x", 8).intValue();
+		int gridY = parameter(parameters, "grid_y", 8).intValue();
 		switch (_recognizerType)
 		{
 		case PCA:
-			_model = createEigenFaceRecognizer(arg0, arg1);
+			_model = createEigenFaceRecognizer(components, threshold);
 			break;
 		case LDA:
-			_model = createFisherFaceRecognizer(arg0, arg1);
+			_model = createFisherFaceRecognizer(components, threshold);
 			break;
 		case BPH:
-			//_model = createLBPHFaceRecognizer(0, 0, 0, 0, 0);
-			//break;
+			_model = createLBPHFaceRecognizer(radius, neighbors, gridX, gridY, threshold);
+			break;
+		case MBPH:
+			_histogram = new LbphHistogram(radius, neighbors, gridX, gridY);
+			_threshold = threshold;
+			break;
 		default:
 			System.err.println("Unrecognized Recognizer Type");
 		}
 	}
 	
+	private static Double parameter(Map<String, Double> parameters, String name, double defaultValue) {
+		Double value = parameters.get(name);
+		return value != null ? value : defaultValue;
+	}
+	
     private int[] toIntArray(List<Integer> list){
         int[] ret = new int[list.size()];
         for(int i = 0;i < ret.length;i++)
@@ -79,117 +195,568 @@ public class DeltaFacer {
         return ret;
     }
 
+    /**
+     * Saves the model together with its class labels and metadata as a
+     * {@link ModelBundle}, so it can be loaded without the training data.
+     */
     public void save(String saveFile) {
     	if (!_isTrained) {
     		System.err.println("Recognizer untrained; nothing to save."); 
     		return;
     	}
     	
-    	_model.save(saveFile);
+    	_lock.readLock().lock();
+    	ModelBundle bundle = new ModelBundle();
+    	bundle.type = _recognizerType;
+    	bundle.imageWidth = _imageWidth;
+    	bundle.imageHeight = _imageHeight;
+    	bundle.parameters = getParameters();
+    	bundle.classLabels = new ArrayList<String>(classLabels);
+    	bundle.removedLabels = new ArrayList<Integer>(_removedLabels);
+    	bundle.enrolledLabels = new ArrayList<Integer>(_enrolledLabels);
+    	bundle.enrolledVectors = new ArrayList<float[]>(_enrolledVectors);
+    	try {
+    		if (_gallery != null) {
+    			// the gallery stays a separate file so that it can be memory mapped
+    			Files.copy(_galleryFile, galleryFile(saveFile), StandardCopyOption.REPLACE_EXISTING);
+    			bundle.model = "";
+    		} else {
+    			bundle.model = serializeModel();
+    		}
+    		bundle.write(saveFile);
+    	} catch (IOException e) {
+    		System.err.println("Failed to save the model: " + e.getMessage());
+    	} finally {
+    		_lock.readLock().unlock();
+    	}
     }
     
     public void load(String loadFile, String trainingData) {
-    	_model.load(loadFile);
+    	if (ModelBundle.isBundle(loadFile)) {
+    		try {
+    			ModelBundle bundle = ModelBundle.read(loadFile);
+    			if (bundle.type != _recognizerType) {
+    				throw new IOException("Model file holds a " + bundle.type.getName() + " recognizer, not "
+    						+ _recognizerType.getName());
+    			}
+    			if (_recognizerType == RecognizerType.MBPH) {
+    				Map<String, Double> parameters = bundle.parameters;
+    				_histogram = new LbphHistogram(parameters.get("radius").intValue(),
+    						parameters.get("neighbors").intValue(), parameters.get("grid_x").intValue(),
+    						parameters.get("grid_y").intValue());
+    				_threshold = parameters.get("threshold");
+    				openGallery(galleryFile(loadFile));
+    				_galleryIsTemporary = false;
+    			} else {
+    				deserializeModel(_model, bundle.model);
+    			}
+    			classLabels = bundle.classLabels;
+    			_imageWidth = bundle.imageWidth;
+    			_imageHeight = bundle.imageHeight;
+    			_removedLabels = new HashSet<Integer>(bundle.removedLabels);
+    			_enrolledLabels = bundle.enrolledLabels;
+    			_enrolledVectors = bundle.enrolledVectors;
+    			if (!_enrolledVectors.isEmpty()) {
+    				// the enrolled faces are only searchable through the index
+    				_annIndex = createAnnIndex(DEFAULT_ANN_M, DEFAULT_ANN_EF_CONSTRUCTION);
+    				_annEfSearch = DEFAULT_ANN_EF_SEARCH;
+    			}
+    		} catch (IOException e) {
+    			System.out.println("Failed to load model: " + e.getMessage());
+    			System.exit(1);
+    		}
+    		_modelVersion++;
+    		_isTrained = true;
+    		return;
+    	}
     	
-    	//Todo: hack, use training data to load in class labels
-    	//model should be able to provide us this info?
-        try {
-            readFaces(trainingData);
+    	// plain OpenCV model from an older version; it has no class labels, so
+    	// they still have to come from the training data, listed in the order
+    	// that version trained on
+    	_model.load(loadFile);
+        try (FaceDatasetLoader loader = new FaceDatasetLoader(_loaderThreads)) {
+            useDataset(loader.scanInListingOrder(trainingData));
+            System.out.println("Model " + loadFile + " has no class labels, they are taken from " + trainingData
+            		+ " in the order they are listed; retrain it to store them with the model");
         } catch (Exception e) {
             System.out.println("Failed to load images: " + e.getMessage());
             System.exit(1);
         }
         
+    	_modelVersion++;
     	_isTrained = true;
     }
     
-    private void readFaces(String faceDir) throws IOException {
-        if (!Files.isDirectory(Paths.get(faceDir))) {
-            throw new FileNotFoundException(faceDir + "not found.");
-        }
-     
-        // In our Face folder, each folder represents a class
-        File[] faceClasses = new File(faceDir).listFiles(File::isDirectory);
-
-        Integer classIndex = 0;
-        for (File faceClass : faceClasses) {
-        	// OpenCV uses integers as labels, so we use the integer as the index in this list
-        	// to get the actual name of the class.
-        	classLabels.add(classIndex, faceClass.getName());
-        	
-        	File[] faceImgs = faceClass.listFiles(File::isFile);
-        	
-        	Integer numTrainingFaces = faceClass.listFiles(File::isFile).length;
-        	
-        	for (int i = 0; i < numTrainingFaces; ++i) {
-            	// Only half the set of images in each class will be used to train -- the rest to test.
-        		if (i < numTrainingFaces / 2) {
-        			trainingMats.add(imread(faceImgs[i].getAbsolutePath(), 0));
-        			trainingLabels.add(classIndex);
-        		}
-        		else {
-        			testMats.add(imread(faceImgs[i].getAbsolutePath(), 0));
-        			testLabels.add(classIndex);
-        		}
-        	}
-        	
-        	classIndex++;
-        }
+    /**
+     * Lists the test half of a data set for {@link #printConfusionMat()} after
+     * the model was loaded from a bundle. Classes are matched to the model by
+     * name; classes the model doesn't know are skipped.
+     */
+    public void loadTestSet(String faceDir) throws IOException {
+    	try (FaceDatasetLoader loader = new FaceDatasetLoader(_loaderThreads)) {
+    		FaceDatasetLoader.Dataset dataset = loader.scan(faceDir);
+    		List<FaceDatasetLoader.Sample> samples = new ArrayList<FaceDatasetLoader.Sample>();
+    		for (FaceDatasetLoader.Sample sample : dataset.getTestSamples()) {
+    			int label = classLabels.indexOf(dataset.getClassLabels().get(sample.getLabel()));
+    			if (label >= 0) {
+    				samples.add(new FaceDatasetLoader.Sample(sample.getPath(), label));
+    			}
+    		}
+    		testSamples = samples;
+    	}
+    }
+    
+    public boolean hasTestSet() {
+    	return !testSamples.isEmpty();
+    }
+    
+    /**
+     * @return the width of the images the model was trained on, 0 if unknown
+     */
+    public int getImageWidth() { return _imageWidth; }
+    
+    /**
+     * @return the height of the images the model was trained on, 0 if unknown
+     */
+    public int getImageHeight() { return _imageHeight; }
+    
+    private Map<String, Double> getParameters() {
+    	Map<String, Double> parameters = new LinkedHashMap<String, Double>();
+    	if (_model instanceof BasicFaceRecognizer) {
+    		BasicFaceRecognizer basic = (BasicFaceRecognizer) _model;
+    		parameters.put("num_components", (double) basic.getNumComponents());
+    		parameters.put("threshold", basic.getThreshold());
+    	} else if (_histogram != null) {
+    		parameters.put("radius", (double) _histogram.getRadius());
+    		parameters.put("neighbors", (double) _histogram.getNeighbors());
+    		parameters.put("grid_x", (double) _histogram.getGridX());
+    		parameters.put("grid_y", (double) _histogram.getGridY());
+    		parameters.put("threshold", _threshold);
+    	} else if (_model instanceof LBPHFaceRecognizer) {
+    		LBPHFaceRecognizer lbph = (LBPHFaceRecognizer) _model;
+    		parameters.put("radius", (double) lbph.getRadius());
+    		parameters.put("neighbors", (double) lbph.getNeighbors());
+    		parameters.put("grid_x", (double) lbph.getGridX());
+    		parameters.put("grid_y", (double) lbph.getGridY());
+    		parameters.put("threshold", lbph.getThreshold());
+    	}
+    	return parameters;
+    }
+    
+    private FaceDatasetLoader.Dataset readFaces(FaceDatasetLoader loader, String faceDir) throws IOException {
+        FaceDatasetLoader.Dataset dataset = loader.scan(faceDir);
+        useDataset(dataset);
+        return dataset;
+    }
+    
+    private void useDataset(FaceDatasetLoader.Dataset dataset) {
+        classLabels.clear();
+        classLabels.addAll(dataset.getClassLabels());
+        testSamples = dataset.getTestSamples();
     }
 
     public String predictLabel(Mat img) {
-    	 int predictedLabel = _model.predict_label(img);
-    	 return classLabels.get(predictedLabel);
+    	return predict(img).getLabel();
     }
     
     public String predictLabelAndConfidence(Mat img) {
-    	int[] values = {0};
-    	double[] dbls = {0.0};
-    	IntPointer predictedLabel = new IntPointer(values);
-        DoublePointer confidence = new DoublePointer(dbls);
-        _model.predict(img, predictedLabel, confidence);
-        return classLabels.get(predictedLabel.get()) + " (" + confidence.get() + ")";
+        return predict(img).toString();
+    }
+    
+    public Prediction predict(Mat img) {
+    	_lock.readLock().lock();
+    	try {
+    		if (_gallery != null) {
+    			return predictFromGallery(img);
+    		}
+    		if (_annIndex != null) {
+    			return predictFromIndex(img);
+    		}
+    		return predictNative(_model, img);
+    	} finally {
+    		_lock.readLock().unlock();
+    	}
+    }
+    
+    /**
+     * Predicts with a copy made by {@link #copyModel()}, skipping removed
+     * labels the same way {@link #predict(Mat)} does.
+     */
+    Prediction predict(opencv_face.FaceRecognizer model, Mat img) {
+    	_lock.readLock().lock();
+    	try {
+    		return predictNative(model, img);
+    	} finally {
+    		_lock.readLock().unlock();
+    	}
+    }
+    
+    private Prediction predictNative(opencv_face.FaceRecognizer model, Mat img) {
+    	if (_removedLabels.isEmpty()) {
+    		int[] values = {0};
+    		double[] dbls = {0.0};
+    		try (IntPointer predictedLabel = new IntPointer(values);
+    				DoublePointer confidence = new DoublePointer(dbls)) {
+    			model.predict(img, predictedLabel, confidence);
+    			int label = predictedLabel.get();
+    			// a label of -1 means the face was further away than the threshold
+    			String name = label >= 0 ? classLabels.get(label) : "Unknown";
+    			return new Prediction(label, name, confidence.get());
+    		}
+    	}
+    	
+    	// the nearest face may belong to a removed label, so collect every
+    	// face within the threshold and take the nearest one still active
+    	try (StandardCollector collector = StandardCollector.create(nativeThreshold(model))) {
+    		model.predict_collect(img, collector);
+    		IntDoublePairVector results = collector.getResults(true);
+    		for (long i = 0; i < results.size(); i++) {
+    			int label = results.first(i);
+    			if (isActive(label)) {
+    				return new Prediction(label, classLabels.get(label), results.second(i));
+    			}
+    		}
+    		return new Prediction(-1, "Unknown", Double.MAX_VALUE);
+    	}
+    }
+    
+    private static double nativeThreshold(opencv_face.FaceRecognizer model) {
+    	if (model instanceof BasicFaceRecognizer) {
+    		return ((BasicFaceRecognizer) model).getThreshold();
+    	}
+    	if (model instanceof LBPHFaceRecognizer) {
+    		return ((LBPHFaceRecognizer) model).getThreshold();
+    	}
+    	return Double.MAX_VALUE;
+    }
+    
+    private boolean isActive(int labelIndex) {
+    	return !_removedLabels.contains(labelIndex);
+    }
+    
+    private Prediction predictFromGallery(Mat img) {
+    	return toPrediction(_gallery.search(_histogram.compute(img), 1, this::isActive));
+    }
+    
+    private Prediction predictFromIndex(Mat img) {
+    	float[] query = project(img);
+    	List<Neighbour> nearest = _annIndex.search(query, 1, _annEfSearch);
+    	if (!_removedLabels.isEmpty()) {
+    		// look further than the closest face, it may be a removed one
+    		List<Neighbour> active = new ArrayList<Neighbour>();
+    		for (Neighbour neighbour : _annIndex.search(query, _annEfSearch, _annEfSearch)) {
+    			if (isActive(neighbour.getLabelIndex())) {
+    				active.add(neighbour);
+    				break;
+    			}
+    		}
+    		nearest = active.isEmpty() ? _annIndex.exactSearch(query, 1, this::isActive) : active;
+    	}
+    	return toPrediction(nearest);
+    }
+    
+    private Prediction toPrediction(List<Neighbour> nearest) {
+    	if (nearest.isEmpty() || nearest.get(0).getDistance() >= _threshold) {
+    		return new Prediction(-1, "Unknown", nearest.isEmpty() ? Double.MAX_VALUE : nearest.get(0).getDistance());
+    	}
+    	int label = nearest.get(0).getLabelIndex();
+    	return new Prediction(label, classLabels.get(label), nearest.get(0).getDistance());
+    }
+    
+    /**
+     * Adds the faces of a person to the trained model without retraining it.
+     * LBPH takes them through update(), the memory mapped gallery appends
+     * their histograms, and PCA / LDA project them with the trained
+     * eigenvectors into the nearest neighbour index (built on first use),
+     * since their native model can only be retrained from scratch.
+     * Predictions running on other threads wait until the faces are in.
+     * 
+     * @param images gray faces of the size the model was trained on
+     * @return the label index the faces were enrolled under
+     */
+    public int enroll(String label, List<Mat> images) throws IOException {
+    	if (images.isEmpty()) {
+    		throw new IllegalArgumentException("No faces to enroll for " + label);
+    	}
+    	_lock.writeLock().lock();
+    	try {
+    		if (!_isTrained) {
+    			throw new IllegalStateException("Recognizer untrained; train it before enrolling faces.");
+    		}
+    		int labelIndex = classLabels.lastIndexOf(label);
+    		if (labelIndex < 0 || !isActive(labelIndex)) {
+    			// a removed label still has its old faces in the model, so a
+    			// returning person starts under a new one
+    			labelIndex = classLabels.size();
+    			classLabels.add(label);
+    		}
+    		
+    		if (_gallery != null) {
+    			enrollIntoGallery(labelIndex, images);
+    		} else if (_recognizerType == RecognizerType.BPH) {
+    			trainBatch(images, Collections.nCopies(images.size(), labelIndex));
+    		} else {
+    			if (_annIndex == null) {
+    				_annIndex = createAnnIndex(DEFAULT_ANN_M, DEFAULT_ANN_EF_CONSTRUCTION);
+    				_annEfSearch = DEFAULT_ANN_EF_SEARCH;
+    			}
+    			for (Mat image : images) {
+    				float[] vector = project(image);
+    				_annIndex.add(vector, labelIndex);
+    				_enrolledVectors.add(vector);
+    				_enrolledLabels.add(labelIndex);
+    			}
+    		}
+    		return labelIndex;
+    	} finally {
+    		_lock.writeLock().unlock();
+    	}
+    }
+    
+    private void enrollIntoGallery(int labelIndex, List<Mat> images) throws IOException {
+    	if (!_galleryIsTemporary) {
+    		// leave the gallery of the saved model as it is
+    		Path copy = Files.createTempFile("lbph", ".gallery");
+    		copy.toFile().deleteOnExit();
+    		Files.copy(_galleryFile, copy, StandardCopyOption.REPLACE_EXISTING);
+    		openGallery(copy);
+    		_galleryIsTemporary = true;
+    	}
+    	try (LbphGallery.Writer writer = LbphGallery.append(_galleryFile)) {
+    		for (Mat image : images) {
+    			writer.add(labelIndex, _histogram.compute(image));
+    		}
+    	}
+    	openGallery(_galleryFile);
+    }
+    
+    /**
+     * Stops the model from recognizing a person. The faces stay in the model
+     * and predictions skip the label, so this takes effect at once for every
+     * recognizer type.
+     * 
+     * @return false if no active label has that name
+     */
+    public boolean remove(String label) {
+    	_lock.writeLock().lock();
+    	try {
+    		boolean removed = false;
+    		for (int i = 0; i < classLabels.size(); i++) {
+    			if (classLabels.get(i).equals(label)) {
+    				removed |= _removedLabels.add(i);
+    			}
+    		}
+    		return removed;
+    	} finally {
+    		_lock.writeLock().unlock();
+    	}
+    }
+    
+    /**
+     * @return true if {@link #predict(Mat)} may be called from several
+     *         threads at once without copying the model
+     */
+    public boolean isThreadSafe() {
+    	return _gallery != null || _annIndex != null;
+    }
+    
+    /**
+     * Exports the projected training faces of a trained PCA or LDA model into
+     * an approximate nearest neighbour index, which {@link #predict(Mat)} uses
+     * from then on instead of the brute force search of the native model.
+     * Prints the build time, the index size and, if a test set is present,
+     * how often the index finds the same nearest face as an exact search.
+     * 
+     * @param m links per node, more links give better recall and a bigger index
+     * @param efConstruction candidate list size while building
+     * @param efSearch candidate list size while searching, the recall / latency trade-off
+     */
+    public void buildAnnIndex(int m, int efConstruction, int efSearch) {
+    	if (!(_model instanceof BasicFaceRecognizer) || !_isTrained) {
+    		System.err.println("Only a trained PCA or LDA recognizer can be indexed.");
+    		return;
+    	}
+    	long start = System.nanoTime();
+    	HnswIndex index = createAnnIndex(m, efConstruction);
+    	if (index == null) {
+    		System.err.println("The model has no projections to index.");
+    		return;
+    	}
+    	
+    	System.out.println(String.format("Built ANN index of %d faces (%d dimensions) in %.2f s, about %d KB",
+    			index.size(), index.dimensions(), (System.nanoTime() - start) / 1e9, index.memoryBytes() / 1024));
+    	if (!testSamples.isEmpty()) {
+    		printAnnRecall(index, efSearch);
+    	}
+    	_lock.writeLock().lock();
+    	try {
+    		_annIndex = index;
+    		_annEfSearch = efSearch;
+    	} finally {
+    		_lock.writeLock().unlock();
+    	}
+    }
+    
+    /**
+     * @return an index of the training projections and the enrolled faces,
+     *         null if there are none
+     */
+    private HnswIndex createAnnIndex(int m, int efConstruction) {
+    	BasicFaceRecognizer basic = (BasicFaceRecognizer) _model;
+    	_mean = basic.getMean();
+    	_eigenVectors = basic.getEigenVectors();
+    	_threshold = basic.getThreshold();
+    	HnswIndex index = null;
+    	try (MatVector projections = basic.getProjections(); Mat labels = basic.getLabels()) {
+    		IntIndexer labelIndexer = labels.createIndexer();
+    		for (int i = 0; i < projections.size(); i++) {
+    			try (Mat projection = projections.get(i)) {
+    				float[] vector = toFloats(projection);
+    				if (index == null) {
+    					index = new HnswIndex(vector.length, m, efConstruction);
+    				}
+    				index.add(vector, labelIndexer.get(i));
+    			}
+    		}
+    		labelIndexer.release();
+    	}
+    	for (int i = 0; i < _enrolledVectors.size(); i++) {
+    		if (index == null) {
+    			index = new HnswIndex(_enrolledVectors.get(i).length, m, efConstruction);
+    		}
+    		index.add(_enrolledVectors.get(i), _enrolledLabels.get(i));
+    	}
+    	return index;
+    }
+    
+    private void printAnnRecall(HnswIndex index, int efSearch) {
+    	int matches = 0;
+    	long annNanos = 0;
+    	long exactNanos = 0;
+    	for (FaceDatasetLoader.Sample sample : testSamples) {
+    		float[] query;
+    		try (Mat image = sample.read()) {
+    			query = project(image);
+    		}
+    		long start = System.nanoTime();
+    		List<Neighbour> approximate = index.search(query, 1, efSearch);
+    		annNanos += System.nanoTime() - start;
+    		start = System.nanoTime();
+    		List<Neighbour> exact = index.exactSearch(query, 1);
+    		exactNanos += System.nanoTime() - start;
+    		
+    		if (!approximate.isEmpty() && approximate.get(0).getDistance() <= exact.get(0).getDistance()) {
+    			matches++;
+    		}
+    	}
+    	int n = testSamples.size();
+    	System.out.println(String.format("ANN recall@1 %.3f at ef=%d, %.3f ms/query (exact search %.3f ms/query)",
+    			(double) matches / n, efSearch, annNanos / 1e6 / n, exactNanos / 1e6 / n));
+    }
+    
+    /**
+     * Projects a face into the PCA / LDA subspace: (x - mean) * eigenvectors.
+     */
+    private float[] project(Mat img) {
+    	try (Mat flat = img.reshape(1, 1); Mat row = new Mat(); Mat centred = new Mat();
+    			Mat projected = new Mat(); Mat none = new Mat()) {
+    		flat.convertTo(row, CV_64F);
+    		subtract(row, _mean, centred);
+    		gemm(centred, _eigenVectors, 1.0, none, 0.0, projected);
+    		return toFloats(projected);
+    	}
+    }
+    
+    private static float[] toFloats(Mat row) {
+    	DoubleIndexer indexer = row.createIndexer();
+    	float[] values = new float[row.cols()];
+    	for (int j = 0; j < values.length; j++) {
+    		values[j] = (float) indexer.get(0, j);
+    	}
+    	indexer.release();
+    	return values;
+    }
+    
+    /**
+     * Creates an independent copy of the trained model, so that it can be used
+     * from another thread. The copy is made in memory through the model's own
+     * serialization and has to be closed by the caller.
+     */
+    public opencv_face.FaceRecognizer copyModel() {
+    	opencv_face.FaceRecognizer copy = createModel(_recognizerType);
+    	_lock.readLock().lock();
+    	try {
+    		deserializeModel(copy, serializeModel());
+    	} finally {
+    		_lock.readLock().unlock();
+    	}
+    	return copy;
+    }
+    
+    private String serializeModel() {
+    	// base64 keeps the matrices binary, which is smaller and much faster to
+    	// parse than the default text format
+    	try (FileStorage out = new FileStorage(".yml", FileStorage.WRITE | FileStorage.MEMORY | FileStorage.BASE64)) {
+    		_model.save(out);
+    		return out.releaseAndGetString().getString();
+    	}
+    }
+    
+    private static void deserializeModel(opencv_face.FaceRecognizer model, String data) {
+    	try (FileStorage in = new FileStorage(data, FileStorage.READ | FileStorage.MEMORY)) {
+    		model.load(in);
+    	}
+    }
+    
+    /**
+     * @return a snapshot of the class labels, removed ones included so that
+     *         label indices stay valid
+     */
+    public List<String> getClassLabels() {
+    	_lock.readLock().lock();
+    	try {
+    		return Collections.unmodifiableList(new ArrayList<String>(classLabels));
+    	} finally {
+    		_lock.readLock().unlock();
+    	}
     }
     
     public void printConfusionMat() {
-    	if (_model == null)
+    	printConfusionMat(Runtime.getRuntime().availableProcessors(), false);
+    }
+    
+    /**
+     * Predicts the whole test set in parallel and prints the confusion matrix,
+     * per class precision / recall and the throughput.
+     * 
+     * @param parallelism number of threads to evaluate with
+     * @param verbose print the prediction for every test image
+     */
+    public void printConfusionMat(int parallelism, boolean verbose) {
+    	if (!_isTrained) {
     		System.out.println("Please train the classifier first.");
+    		return;
+    	}
+    	if (testSamples.isEmpty()) {
+    		System.out.println("No test images to evaluate the classifier with.");
+    		return;
+    	}
     	
-        int testCount = 0;
-        // Initialize confusion matrix
-        int[][] confusion_matrix = new int[classLabels.size()][];
-        for (int i = 0; i < classLabels.size(); ++i) {
-        	confusion_matrix[i] = new int[classLabels.size()];
-        	
-        	for (int j = 0; j < classLabels.size(); ++j)
-        		confusion_matrix[i][j] = 0;
-        }
-        
-        for (int i = 0; i < testMats.size(); ++i) {
-        	 int predictedLabel = _model.predict_label(testMats.get(i));
-        	 System.out.println(
-        			 String.format("Predicted class = %s / Actual class = %s.", 
-        					 classLabels.get(predictedLabel), 
-        					 classLabels.get(testLabels.get(i))
-        			 )
-        	);
-        	confusion_matrix[testLabels.get(i)][predictedLabel]++;
-        }
-        
-        // Output confusion matrix
-        System.out.println("\nClasses:");
-        for (int i = 0; i < classLabels.size(); ++i)
-        	System.out.println(String.format("%d = %s", i, classLabels.get(i)));
-        for (int i = 0; i < classLabels.size(); ++i)
-        	System.out.format("%5d", i);
-        System.out.println();
-        for (int i = 0; i < classLabels.size(); ++i) {
-        	System.out.format("%d", i);
-        	for (int j = 0; j < classLabels.size(); ++j) {
-        		System.out.format("%5d", confusion_matrix[i][j]);
-        	}
-        	System.out.println();
-        }
+    	Evaluator evaluator = new Evaluator(this, parallelism, verbose, this::readFace);
+    	Evaluator.Result result = evaluator.evaluate(testSamples);
+    	result.print();
+    	if (_aligner != null) {
+    		// the same test faces unaligned, for what the alignment is worth
+    		Evaluator.Result unaligned = new Evaluator(this, parallelism, false,
+    				FaceDatasetLoader.Sample::read).evaluate(testSamples);
+    		System.out.println(String.format("Accuracy %.2f%% with aligned test faces, %.2f%% without (%+.2f points)",
+    				100 * result.getAccuracy(), 100 * unaligned.getAccuracy(),
+    				100 * (result.getAccuracy() - unaligned.getAccuracy())));
+    		System.out.println(FacePreprocessor.getAlignmentStatistics());
+    	}
+    	if (featureCache() != null) {
+    		featureCache().printStatistics();
+    	}
     }
     
     public void train(String faceFolder) {
@@ -202,26 +769,201 @@ public class DeltaFacer {
     	
     	//String faceFolder = "C:/Users/Aman Rana/Downloads/Faces";//args[0];
         
-        try {
-            readFaces(faceFolder);
-        } catch (Exception e) {
+        try (FaceDatasetLoader loader = newLoader()) {
+            List<FaceDatasetLoader.Sample> trainingSamples = readFaces(loader, faceFolder).getTrainingSamples();
+            
+            // Quit if there are not enough images for this demo.
+            if(trainingSamples.size() <= 1) {
+                throw new RuntimeException("This demo needs at least 2 images to work. Please add more images to your data set!");
+            }
+            
+            if (_recognizerType == RecognizerType.MBPH) {
+            	trainGallery(loader, trainingSamples);
+            } else if (_recognizerType == RecognizerType.BPH) {
+            	// LBPH keeps one histogram per image and can be extended, so the
+            	// images can be streamed in without holding the whole set
+            	loader.decode(trainingSamples, FaceDatasetLoader.DEFAULT_BATCH_SIZE,
+            			(images, labels) -> trainBatch(images, labels));
+            } else {
+            	// Eigen and Fisher need every image at once to compute the projection
+            	loader.decode(trainingSamples, trainingSamples.size(),
+            			(images, labels) -> trainBatch(images, labels));
+            }
+            loader.printStatistics();
+            if (featureCache() != null) {
+            	featureCache().printStatistics();
+            }
+        } catch (IOException e) {
             System.out.println("Failed to load images: " + e.getMessage());
             System.exit(1);
         }
-        
-        // Quit if there are not enough images for this demo.
-        if(trainingMats.size() <= 1) {
-            throw new RuntimeException("This demo needs at least 2 images to work. Please add more images to your data set!");
+    }
+    
+    private void trainGallery(FaceDatasetLoader loader, List<FaceDatasetLoader.Sample> trainingSamples)
+    		throws IOException {
+    	Path galleryFile = Files.createTempFile("lbph", ".gallery");
+    	galleryFile.toFile().deleteOnExit();
+    	try (LbphGallery.Writer writer = LbphGallery.create(galleryFile, _histogram.dimensions())) {
+    		FeatureCache cache = featureCache();
+    		if (cache != null) {
+    			// histograms of unchanged images come from the cache without decoding them
+    			try (Mat first = cache.face(trainingSamples.get(0))) {
+    				_imageWidth = first.cols();
+    				_imageHeight = first.rows();
+    				_isTrained = true;
+    			}
+    			for (int from = 0; from < trainingSamples.size(); from += FaceDatasetLoader.DEFAULT_BATCH_SIZE) {
+    				List<FaceDatasetLoader.Sample> batch = trainingSamples.subList(from,
+    						Math.min(trainingSamples.size(), from + FaceDatasetLoader.DEFAULT_BATCH_SIZE));
+    				List<float[]> histograms = batch.parallelStream().map(sample -> {
+    					try {
+    						return cache.histogram(sample, _histogram);
+    					} catch (IOException e) {
+    						throw new UncheckedIOException(e);
+    					}
+    				}).collect(Collectors.toList());
+    				for (int i = 0; i < histograms.size(); i++) {
+    					writer.add(batch.get(i).getLabel(), histograms.get(i));
+    				}
+    			}
+    		} else {
+    			loader.decode(trainingSamples, FaceDatasetLoader.DEFAULT_BATCH_SIZE, (images, labels) -> {
+    				if (!_isTrained) {
+    					_imageWidth = images.get(0).cols();
+    					_imageHeight = images.get(0).rows();
+    					_isTrained = true;
+    				}
+    				List<float[]> histograms = images.parallelStream().map(_histogram::compute)
+    						.collect(Collectors.toList());
+    				try {
+    					for (int i = 0; i < histograms.size(); i++) {
+    						writer.add(labels.get(i), histograms.get(i));
+    					}
+    				} catch (IOException e) {
+    					throw new UncheckedIOException(e);
+    				}
+    			});
+    		}
+    	} catch (UncheckedIOException e) {
+    		throw e.getCause();
+    	}
+    	openGallery(galleryFile);
+    	_galleryIsTemporary = true;
+    }
+    
+    /**
+     * Trains on faces that are already decoded, e.g. the folds of a
+     * {@link CrossValidator}. The images are only read, so several
+     * recognizers can train on the same ones at the same time.
+     * 
+     * @param labels class names, indexed by the image labels
+     */
+    void train(List<String> labels, List<Mat> images, List<Integer> imageLabels) throws IOException {
+    	classLabels = new ArrayList<String>(labels);
+    	testSamples = new ArrayList<FaceDatasetLoader.Sample>();
+    	if (_recognizerType != RecognizerType.MBPH) {
+    		trainBatch(images, imageLabels);
+    		return;
+    	}
+    	
+    	Path galleryFile = Files.createTempFile("lbph", ".gallery");
+    	galleryFile.toFile().deleteOnExit();
+    	try (LbphGallery.Writer writer = LbphGallery.create(galleryFile, _histogram.dimensions())) {
+    		for (int i = 0; i < images.size(); i++) {
+    			writer.add(imageLabels.get(i), _histogram.compute(images.get(i)));
+    		}
+    	}
+    	_imageWidth = images.get(0).cols();
+    	_imageHeight = images.get(0).rows();
+    	openGallery(galleryFile);
+    	_galleryIsTemporary = true;
+    	_modelVersion++;
+    	_isTrained = true;
+    }
+    
+    /**
+     * Frees the native model and a temporary gallery right away instead of
+     * when the recognizer is collected; it can't be used afterwards.
+     */
+    void release() {
+    	if (_model != null) {
+    		_model.close();
+    		_model = null;
+    	}
+    	if (_gallery != null) {
+    		try {
+    			_gallery.close();
+    			if (_galleryIsTemporary) {
+    				Files.deleteIfExists(_galleryFile);
+    			}
+    		} catch (IOException e) {
+    			System.err.println("Failed to remove the gallery: " + e.getMessage());
+    		}
+    		_gallery = null;
+    	}
+    	_isTrained = false;
+    }
+    
+    private void openGallery(Path galleryFile) throws IOException {
+    	if (_gallery != null) {
+    		_gallery.close();
+    	}
+    	_gallery = LbphGallery.open(galleryFile);
+    	_galleryFile = galleryFile;
+    }
+    
+    private static Path galleryFile(String modelFile) {
+    	return Paths.get(modelFile + ".gallery");
+    }
+    
+    private FaceDatasetLoader newLoader() {
+    	FaceDatasetLoader loader = new FaceDatasetLoader(_loaderThreads);
+    	loader.setReader(this::readFace);
+    	return loader;
+    }
+    
+    /**
+     * @return the face of a sample the way it is trained and evaluated on:
+     *         decoded, aligned if there is an aligner, from the cache if
+     *         there is one
+     */
+    private Mat readFace(FaceDatasetLoader.Sample sample) throws IOException {
+    	FeatureCache cache = featureCache();
+    	if (cache != null) {
+    		return cache.face(sample);
+    	}
+    	Mat image = sample.read();
+    	if (_aligner != null) {
+    		_aligner.align(image);
+    	}
+    	return image;
+    }
+    
+    private synchronized FeatureCache featureCache() {
+    	if (_featureCache == null && _featureCacheFolder != null) {
+    		FacePreprocessor aligner = _aligner;
+    		_featureCache = aligner == null ? new FeatureCache(_featureCacheFolder, "gray", null)
+    				: new FeatureCache(_featureCacheFolder, "aligned", aligner::align);
+    	}
+    	return _featureCache;
+    }
+    
+    private void trainBatch(List<Mat> images, List<Integer> labels) {
+        if (!_isTrained) {
+        	_imageWidth = images.get(0).cols();
+        	_imageHeight = images.get(0).rows();
         }
-
-        Mat[] matArray = new Mat[trainingMats.size()];
-        matArray = trainingMats.toArray(matArray);
-        int[] array = toIntArray(trainingLabels);
-        Mat matlabels = new Mat(new IntPointer(array));
-        MatVector matVector = new MatVector(matArray);
-        _model.train(matVector, matlabels);
-        
+        Mat[] matArray = new Mat[images.size()];
+        matArray = images.toArray(matArray);
+        int[] array = toIntArray(labels);
+        try (Mat matlabels = new Mat(new IntPointer(array)); MatVector matVector = new MatVector(matArray)) {
+        	if (_isTrained) {
+        		_model.update(matVector, matlabels);
+        	} else {
+        		_model.train(matVector, matlabels);
+        	}
+        }
+        _modelVersion++;
         _isTrained = true;
     }
 }
-
@@ -0,0 +1,118 @@
+package application.facerecognizer;
+
+/**
+ * How {@link FacePreprocessor} runs the face cascade. In full mode the
+ * cascade scans the whole frame. In pyramid mode it scans a downscaled copy
+ * first and then only the padded regions around the faces found there, at
+ * full resolution and over a narrow range of sizes. That is much cheaper
+ * when faces are large relative to the frame, but misses faces that are too
+ * small for the cascade window once downscaled.
+ *
+ * Face sizes are fractions of the frame height. Settings are immutable; to
+ * change them, hand a new instance to the preprocessor.
+ */
+public class DetectionSettings {
+
+	public enum Mode {
+		FULL, PYRAMID
+	}
+
+	private final Mode mode;
+	private final double downscale;
+	private final double scaleFactor;
+	private final int minNeighbours;
+	private final double minFaceSize;
+	private final double maxFaceSize;
+	private final double refinePadding;
+
+	/**
+	 * @param downscale
+	 *            size of the coarse frame relative to the original, pyramid
+	 *            mode only
+	 * @param scaleFactor
+	 *            step between the scales the cascade is run at
+	 * @param minFaceSize
+	 *            smallest face to find
+	 * @param maxFaceSize
+	 *            largest face to find, 0 for no limit
+	 * @param refinePadding
+	 *            padding around a coarse face, as a fraction of its size, of
+	 *            the region searched at full resolution
+	 */
+	public DetectionSettings(Mode mode, double downscale, double scaleFactor, int minNeighbours, double minFaceSize,
+			double maxFaceSize, double refinePadding) {
+		this.mode = mode;
+		this.downscale = downscale;
+		this.scaleFactor = scaleFactor;
+		this.minNeighbours = minNeighbours;
+		this.minFaceSize = minFaceSize;
+		this.maxFaceSize = maxFaceSize;
+		this.refinePadding = refinePadding;
+	}
+
+	/**
+	 * @return full frame detection as it has always been done
+	 */
+	public static DetectionSettings defaults() {
+		return new DetectionSettings(Mode.FULL, 0.5, 1.04, 2, 0.02, 0, 0.25);
+	}
+
+	/**
+	 * @return the same settings in another mode
+	 */
+	public DetectionSettings withMode(Mode mode) {
+		return new DetectionSettings(mode, downscale, scaleFactor, minNeighbours, minFaceSize, maxFaceSize,
+				refinePadding);
+	}
+
+	/**
+	 * @return the same settings with another step between scales
+	 */
+	public DetectionSettings withScaleFactor(double scaleFactor) {
+		return new DetectionSettings(mode, downscale, scaleFactor, minNeighbours, minFaceSize, maxFaceSize,
+				refinePadding);
+	}
+
+	/**
+	 * @return the same settings with another smallest face
+	 */
+	public DetectionSettings withMinFaceSize(double minFaceSize) {
+		return new DetectionSettings(mode, downscale, scaleFactor, minNeighbours, minFaceSize, maxFaceSize,
+				refinePadding);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public double getDownscale() {
+		return downscale;
+	}
+
+	public double getScaleFactor() {
+		return scaleFactor;
+	}
+
+	public int getMinNeighbours() {
+		return minNeighbours;
+	}
+
+	public double getMinFaceSize() {
+		return minFaceSize;
+	}
+
+	public double getMaxFaceSize() {
+		return maxFaceSize;
+	}
+
+	public double getRefinePadding() {
+		return refinePadding;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s detection, downscale %.2f, scale step %.2f, faces %.1f%%-%s of the frame height",
+				mode, downscale, scaleFactor, 100 * minFaceSize,
+				maxFaceSize > 0 ? String.format("%.1f%%", 100 * maxFaceSize) : "any");
+	}
+}
@@ -0,0 +1,235 @@
+package application.facerecognizer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.ToIntFunction;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_face;
+
+/**
+ * Predicts a labelled test set on a fork-join pool and collects the results
+ * into a confusion matrix. The test set is split into ranges; each range is
+ * counted into its own matrix and the matrices are summed when the ranges are
+ * joined. Every pool thread predicts with its own copy of the model, so no
+ * native model is ever shared between threads; recognizers that are thread
+ * safe by themselves are shared as they are. Test images are decoded by the
+ * thread that predicts them and released right after.
+ */
+public class Evaluator {
+
+	/**
+	 * Outcome of an evaluation run.
+	 */
+	public static class Result {
+		private final List<String> classLabels;
+		private final int[][] confusion;
+		private final int[] rejected;
+		private final long samples;
+		private final long nanos;
+
+		Result(List<String> classLabels, Counts counts, long samples, long nanos) {
+			this.classLabels = classLabels;
+			this.confusion = counts.confusion;
+			this.rejected = counts.rejected;
+			this.samples = samples;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * @return confusion[actual][predicted]
+		 */
+		public int[][] getConfusionMatrix() {
+			return confusion;
+		}
+
+		public double getAccuracy() {
+			long correct = 0;
+			for (int i = 0; i < confusion.length; i++) {
+				correct += confusion[i][i];
+			}
+			return samples == 0 ? 0 : (double) correct / samples;
+		}
+
+		public double getPrecision(int label) {
+			long predicted = 0;
+			for (int i = 0; i < confusion.length; i++) {
+				predicted += confusion[i][label];
+			}
+			return predicted == 0 ? 0 : (double) confusion[label][label] / predicted;
+		}
+
+		public double getRecall(int label) {
+			long actual = rejected[label];
+			for (int j = 0; j < confusion.length; j++) {
+				actual += confusion[label][j];
+			}
+			return actual == 0 ? 0 : (double) confusion[label][label] / actual;
+		}
+
+		/**
+		 * @return test images predicted per second
+		 */
+		public double getThroughput() {
+			return nanos == 0 ? 0 : samples / (nanos / 1e9);
+		}
+
+		public void print() {
+			int classes = classLabels.size();
+
+			// Output confusion matrix
+			System.out.println("\nClasses:");
+			for (int i = 0; i < classes; ++i)
+				System.out.println(String.format("%d = %s", i, classLabels.get(i)));
+			for (int i = 0; i < classes; ++i)
+				System.out.format("%5d", i);
+			System.out.println();
+			for (int i = 0; i < classes; ++i) {
+				System.out.format("%d", i);
+				for (int j = 0; j < classes; ++j) {
+					System.out.format("%5d", confusion[i][j]);
+				}
+				System.out.println();
+			}
+
+			System.out.println("\nClass  Precision  Recall  Rejected");
+			for (int i = 0; i < classes; ++i) {
+				System.out.println(String.format("%5d  %9.3f  %6.3f  %8d", i, getPrecision(i), getRecall(i), rejected[i]));
+			}
+			System.out.println(String.format("Accuracy %.3f, %d images in %.2f s (%.1f images/s)", getAccuracy(),
+					samples, nanos / 1e9, getThroughput()));
+		}
+	}
+
+	private static class Counts {
+		final int[][] confusion;
+		// test images the model refused to label (distance above threshold)
+		final int[] rejected;
+
+		Counts(int classes) {
+			confusion = new int[classes][classes];
+			rejected = new int[classes];
+		}
+
+		Counts add(Counts other) {
+			for (int i = 0; i < confusion.length; i++) {
+				for (int j = 0; j < confusion.length; j++) {
+					confusion[i][j] += other.confusion[i][j];
+				}
+				rejected[i] += other.rejected[i];
+			}
+			return this;
+		}
+	}
+
+	private class EvaluationTask extends RecursiveTask<Counts> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<FaceDatasetLoader.Sample> testSamples;
+		private final int from;
+		private final int to;
+		private final int leafSize;
+
+		EvaluationTask(List<FaceDatasetLoader.Sample> testSamples, int from, int to, int leafSize) {
+			this.testSamples = testSamples;
+			this.from = from;
+			this.to = to;
+			this.leafSize = leafSize;
+		}
+
+		@Override
+		protected Counts compute() {
+			if (to - from > leafSize) {
+				int middle = (from + to) >>> 1;
+				EvaluationTask left = new EvaluationTask(testSamples, from, middle, leafSize);
+				left.fork();
+				Counts right = new EvaluationTask(testSamples, middle, to, leafSize).compute();
+				return right.add(left.join());
+			}
+
+			ToIntFunction<Mat> model = models.get();
+			Counts counts = new Counts(classLabels.size());
+			StringBuilder log = verbose ? new StringBuilder() : null;
+			for (int i = from; i < to; i++) {
+				FaceDatasetLoader.Sample sample = testSamples.get(i);
+				int actual = sample.getLabel();
+				int predicted;
+				try (Mat image = reader.read(sample)) {
+					predicted = model.applyAsInt(image);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				// a label enrolled after the evaluation started is not in the matrix
+				boolean unknown = predicted < 0 || predicted >= classLabels.size();
+				if (unknown) {
+					counts.rejected[actual]++;
+				} else {
+					counts.confusion[actual][predicted]++;
+				}
+				if (log != null) {
+					log.append(String.format("Predicted class = %s / Actual class = %s.%n",
+							unknown ? "Unknown" : classLabels.get(predicted), classLabels.get(actual)));
+				}
+			}
+			if (log != null) {
+				System.out.print(log);
+			}
+			return counts;
+		}
+	}
+
+	private final List<String> classLabels;
+	private final int parallelism;
+	private final boolean verbose;
+	private final FaceDatasetLoader.SampleReader reader;
+	private final Queue<opencv_face.FaceRecognizer> copies = new ConcurrentLinkedQueue<>();
+	private final ThreadLocal<ToIntFunction<Mat>> models;
+
+	public Evaluator(DeltaFacer recognizer, int parallelism, boolean verbose) {
+		this(recognizer, parallelism, verbose, FaceDatasetLoader.Sample::read);
+	}
+
+	/**
+	 * @param reader
+	 *            turns a test sample into the face that is predicted, e.g.
+	 *            decoded and aligned; it is called from the pool threads
+	 */
+	public Evaluator(DeltaFacer recognizer, int parallelism, boolean verbose, FaceDatasetLoader.SampleReader reader) {
+		this.classLabels = recognizer.getClassLabels();
+		this.parallelism = Math.max(1, parallelism);
+		this.verbose = verbose;
+		this.reader = reader;
+		this.models = ThreadLocal.withInitial(() -> {
+			if (recognizer.isThreadSafe()) {
+				return image -> recognizer.predict(image).getLabelIndex();
+			}
+			opencv_face.FaceRecognizer copy = recognizer.copyModel();
+			copies.add(copy);
+			return image -> recognizer.predict(copy, image).getLabelIndex();
+		});
+	}
+
+	public Result evaluate(List<FaceDatasetLoader.Sample> testSamples) {
+		int size = testSamples.size();
+		// a few ranges per thread so that a slow range doesn't hold up the others
+		int leafSize = Math.max(1, size / (parallelism * 4));
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		long start = System.nanoTime();
+		try {
+			Counts counts = pool.invoke(new EvaluationTask(testSamples, 0, size, leafSize));
+			return new Result(classLabels, counts, size, System.nanoTime() - start);
+		} finally {
+			pool.shutdown();
+			for (opencv_face.FaceRecognizer copy : copies) {
+				copy.close();
+			}
+			copies.clear();
+		}
+	}
+}
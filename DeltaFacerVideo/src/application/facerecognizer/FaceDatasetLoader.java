@@ -0,0 +1,316 @@
+package application.facerecognizer;
+
+import static org.bytedeco.javacpp.opencv_imgcodecs.IMREAD_GRAYSCALE;
+import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * Reads a face data set laid out as one folder per class. Folders and images
+ * are visited in name order, so the train/test split is the same on every
+ * run and every machine, except for {@link #scanInListingOrder(String)}.
+ * Images are decoded in parallel and handed out in batches; a batch is
+ * released as soon as its consumer returns, so only a couple of batches are
+ * ever decoded at the same time.
+ */
+public class FaceDatasetLoader implements AutoCloseable {
+
+	/**
+	 * An image of the data set and the index of its class.
+	 */
+	public static class Sample {
+		private final Path path;
+		private final int label;
+
+		public Sample(Path path, int label) {
+			this.path = path;
+			this.label = label;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public int getLabel() {
+			return label;
+		}
+
+		/**
+		 * @return the decoded grayscale image, to be released by the caller
+		 */
+		public Mat read() {
+			return imread(path.toString(), IMREAD_GRAYSCALE);
+		}
+	}
+
+	/**
+	 * The class names and the train/test split of a data set.
+	 */
+	public static class Dataset {
+		private final List<String> classLabels;
+		private final List<Sample> trainingSamples;
+		private final List<Sample> testSamples;
+
+		Dataset(List<String> classLabels, List<Sample> trainingSamples, List<Sample> testSamples) {
+			this.classLabels = classLabels;
+			this.trainingSamples = trainingSamples;
+			this.testSamples = testSamples;
+		}
+
+		public List<String> getClassLabels() {
+			return classLabels;
+		}
+
+		public List<Sample> getTrainingSamples() {
+			return trainingSamples;
+		}
+
+		public List<Sample> getTestSamples() {
+			return testSamples;
+		}
+	}
+
+	/**
+	 * Receives the decoded images of one batch. The images are released once
+	 * this returns, so anything that has to outlive the call must be copied.
+	 */
+	public interface BatchConsumer {
+		void accept(List<Mat> images, List<Integer> labels);
+	}
+
+	/**
+	 * Turns a sample into the image handed out, e.g. from a
+	 * {@link FeatureCache}. It is called from the loader threads.
+	 */
+	public interface SampleReader {
+		Mat read(Sample sample) throws IOException;
+	}
+
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	private final ExecutorService executor;
+	private SampleReader reader = Sample::read;
+	private long images = 0;
+	private long nanos = 0;
+	private long peakPhysicalBytes = 0;
+	private long peakTotalBytes = 0;
+
+	public FaceDatasetLoader() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public FaceDatasetLoader(int threads) {
+		executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+			Thread thread = new Thread(r, "face-loader");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Reads the samples with the given reader instead of decoding the image
+	 * files as they are.
+	 */
+	public void setReader(SampleReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Lists the data set without decoding anything. In every class folder the
+	 * first half of the images is used to train, the rest to test.
+	 */
+	public Dataset scan(String faceDir) throws IOException {
+		return scan(faceDir, true);
+	}
+
+	/**
+	 * Same as {@link #scan(String)}, but visits folders and images in the
+	 * order the file system lists them, as the first version of this
+	 * application did. Models saved by that version hold no class labels, and
+	 * their label indices follow this order, which differs from name order
+	 * on some file systems.
+	 */
+	public Dataset scanInListingOrder(String faceDir) throws IOException {
+		return scan(faceDir, false);
+	}
+
+	private Dataset scan(String faceDir, boolean nameOrder) throws IOException {
+		Path root = Paths.get(faceDir);
+		if (!Files.isDirectory(root)) {
+			throw new FileNotFoundException(faceDir + " not found.");
+		}
+
+		List<String> classLabels = new ArrayList<>();
+		List<Sample> trainingSamples = new ArrayList<>();
+		List<Sample> testSamples = new ArrayList<>();
+
+		// In our Face folder, each folder represents a class
+		List<Path> faceClasses = list(root, true, nameOrder);
+		for (int classIndex = 0; classIndex < faceClasses.size(); classIndex++) {
+			Path faceClass = faceClasses.get(classIndex);
+			// OpenCV uses integers as labels, so we use the integer as the index in this list
+			// to get the actual name of the class.
+			classLabels.add(faceClass.getFileName().toString());
+
+			List<Path> faceImgs = list(faceClass, false, nameOrder);
+			for (int i = 0; i < faceImgs.size(); i++) {
+				Sample sample = new Sample(faceImgs.get(i), classIndex);
+				if (i < faceImgs.size() / 2) {
+					trainingSamples.add(sample);
+				} else {
+					testSamples.add(sample);
+				}
+			}
+		}
+		return new Dataset(classLabels, trainingSamples, testSamples);
+	}
+
+	private static List<Path> list(Path dir, boolean directories, boolean nameOrder) throws IOException {
+		List<Path> paths = new ArrayList<>();
+		if (!nameOrder) {
+			File[] files = dir.toFile().listFiles(directories ? File::isDirectory : File::isFile);
+			if (files == null) {
+				throw new IOException("Could not list " + dir);
+			}
+			for (File file : files) {
+				paths.add(file.toPath());
+			}
+			return paths;
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir,
+				p -> directories ? Files.isDirectory(p) : Files.isRegularFile(p))) {
+			for (Path path : stream) {
+				paths.add(path);
+			}
+		}
+		Collections.sort(paths);
+		return paths;
+	}
+
+	/**
+	 * Decodes the samples in parallel and passes them to the consumer in
+	 * batches, in the order of the list. The next batch is decoded while the
+	 * consumer works on the current one.
+	 */
+	public void decode(List<Sample> samples, int batchSize, BatchConsumer consumer) throws IOException {
+		long start = System.nanoTime();
+		batchSize = Math.max(1, batchSize);
+
+		List<Future<Mat>> current = submit(samples, 0, batchSize);
+		List<Future<Mat>> next = null;
+		try {
+			for (int from = 0; from < samples.size(); from += batchSize) {
+				int to = Math.min(samples.size(), from + batchSize);
+				next = submit(samples, to, batchSize);
+
+				List<Mat> batch = new ArrayList<>(to - from);
+				List<Integer> labels = new ArrayList<>(to - from);
+				try {
+					for (int i = from; i < to; i++) {
+						Mat image = await(current.get(i - from));
+						current.set(i - from, null);
+						if (image.empty()) {
+							image.release();
+							throw new IOException("Could not decode " + samples.get(i).getPath());
+						}
+						batch.add(image);
+						labels.add(samples.get(i).getLabel());
+					}
+					updatePeakMemory();
+					consumer.accept(batch, labels);
+				} finally {
+					for (Mat image : batch) {
+						image.release();
+					}
+				}
+				current = next;
+				next = null;
+			}
+		} finally {
+			// after a failure, release the batches still being decoded
+			discard(current);
+			discard(next);
+		}
+
+		images += samples.size();
+		nanos += System.nanoTime() - start;
+	}
+
+	private List<Future<Mat>> submit(List<Sample> samples, int from, int batchSize) {
+		List<Future<Mat>> futures = new ArrayList<>();
+		for (int i = from; i < Math.min(samples.size(), from + batchSize); i++) {
+			Sample sample = samples.get(i);
+			futures.add(executor.submit(() -> reader.read(sample)));
+		}
+		return futures;
+	}
+
+	/**
+	 * Cancels the decodes that have not started and releases the images of
+	 * the others, waiting for the ones in progress. Awaited futures are
+	 * nulled out of the list and skipped.
+	 */
+	private static void discard(List<Future<Mat>> futures) {
+		if (futures == null) {
+			return;
+		}
+		for (Future<Mat> future : futures) {
+			if (future == null || future.cancel(false)) {
+				continue;
+			}
+			try {
+				future.get().release();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				// nothing was decoded
+			}
+		}
+	}
+
+	private static Mat await(Future<Mat> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decoding images", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private void updatePeakMemory() {
+		peakPhysicalBytes = Math.max(peakPhysicalBytes, Pointer.physicalBytes());
+		peakTotalBytes = Math.max(peakTotalBytes, Pointer.totalBytes());
+	}
+
+	public void printStatistics() {
+		double seconds = nanos / 1e9;
+		System.out.println(String.format(
+				"Loaded %d images in %.2f s (%.1f images/s), peak native memory %s (process), %s (JavaCPP)", images,
+				seconds, seconds == 0 ? 0.0 : images / seconds, Pointer.formatBytes(peakPhysicalBytes),
+				Pointer.formatBytes(peakTotalBytes)));
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+}
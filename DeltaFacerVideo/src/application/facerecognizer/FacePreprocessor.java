@@ -1,9 +1,9 @@
 package application.facerecognizer;
 
-import static org.bytedeco.javacpp.opencv_core.CV_32F;
 import static org.bytedeco.javacpp.opencv_imgcodecs.IMREAD_GRAYSCALE;
 import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
 import static org.bytedeco.javacpp.opencv_imgcodecs.imwrite;
+import static org.bytedeco.javacpp.opencv_imgproc.INTER_AREA;
 import static org.bytedeco.javacpp.opencv_imgproc.getRotationMatrix2D;
 import static org.bytedeco.javacpp.opencv_imgproc.resize;
 import static org.bytedeco.javacpp.opencv_imgproc.warpAffine;
@@ -11,20 +11,63 @@ import static org.bytedeco.javacpp.opencv_imgproc.warpAffine;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.bytedeco.javacpp.opencv_core;
 import org.bytedeco.javacpp.opencv_core.Mat;
 import org.bytedeco.javacpp.opencv_core.RectVector;
 import org.bytedeco.javacpp.opencv_core.Size;
 import org.bytedeco.javacpp.opencv_objdetect.CascadeClassifier;
-import org.bytedeco.javacpp.indexer.FloatRawIndexer;
+import org.bytedeco.javacpp.indexer.DoubleIndexer;
 
 import application.facedetection.FaceRecognizer;
+import application.metrics.LatencyHistogram;
+import application.metrics.Metrics;
 
 public class FacePreprocessor {
 
 	CascadeClassifier eyeClassifier;
 	CascadeClassifier faceClassifier;
+	// shared with other preprocessors instead of the classifiers above
+	private CascadePool facePool;
+	private CascadePool eyePool;
+	// aligns the faces of a frame in parallel if set
+	private ExecutorService alignmentExecutor;
+	private volatile boolean alignFaces = true;
+
+	/**
+	 * Alignment buffers of one thread; alignment may run on the threads of
+	 * the alignment executor.
+	 */
+	private static class AlignmentBuffers {
+		final RectVector eyeRects = new RectVector();
+		final Mat alignedFace = new Mat();
+	}
+
+	private static final ThreadLocal<AlignmentBuffers> ALIGNMENT_BUFFERS = ThreadLocal
+			.withInitial(AlignmentBuffers::new);
+
+	// over all preprocessors
+	private static final LatencyHistogram detectLatency = Metrics.histogram("detect.cascade");
+	private static final LatencyHistogram alignLatency = Metrics.histogram("align");
+	private static final LongAdder alignedFaces = Metrics.counter("align.aligned");
+	private static final LongAdder unalignedFaces = Metrics.counter("align.failed");
+	private static final LongAdder errors = Metrics.counter("errors.preprocess");
+
+	// detection scratch buffers reused from call to call; they make a
+	// preprocessor usable from one thread at a time. get() on a RectVector
+	// returns a view into it, so a rectangle kept past the next detection
+	// must be copied.
+	private final Size minFaceSize = new Size();
+	private final Size maxFaceSize = new Size();
+	private final Size smallSize = new Size();
+	private final Mat smallImage = new Mat();
+	private final RectVector coarseRects = new RectVector();
+	private final RectVector refinedRects = new RectVector();
+
+	private volatile DetectionSettings detectionSettings = DetectionSettings.defaults();
 
 	public FacePreprocessor(CascadeClassifier faceClassifier, CascadeClassifier eyeClassifier) {
 		this.faceClassifier = faceClassifier;
@@ -36,30 +79,136 @@ public class FacePreprocessor {
 		this.eyeClassifier = new CascadeClassifier(eyeClassifier);
 	}
 
+	/**
+	 * Borrows the classifiers from the pools for every detection, so any
+	 * number of preprocessors can share them.
+	 * 
+	 * @param alignmentExecutor
+	 *            aligns the faces of a frame in parallel, null to align them
+	 *            one after the other
+	 */
+	public FacePreprocessor(CascadePool faceClassifiers, CascadePool eyeClassifiers,
+			ExecutorService alignmentExecutor) {
+		this.facePool = faceClassifiers;
+		this.eyePool = eyeClassifiers;
+		this.alignmentExecutor = alignmentExecutor;
+	}
+
 	public List<Mat> facepreprocessing(Mat image, RectVector rectVector, Size targetSize, double paddingAmount) {
+		return facepreprocessing(image, rectVector, targetSize, paddingAmount, new ArrayList<Mat>());
+	}
+
+	/**
+	 * Same as {@link #facepreprocessing(Mat, RectVector, Size, double)}, but
+	 * crops into the Mats of the given list.
+	 */
+	public List<Mat> facepreprocessing(Mat image, RectVector rectVector, Size targetSize, double paddingAmount,
+			List<Mat> buffers) {
+		try {
+			detectFaces(image, rectVector);
+		} catch (Exception e) {
+			errors.increment();
+			System.out.println(e.getMessage());
+			return Collections.<Mat>emptyList();
+		}
+
+		return preprocessFaces(rectVector, image, targetSize, paddingAmount, buffers);
+	}
+
+	/**
+	 * Crops and aligns the faces at the given locations, e.g. locations carried
+	 * forward by a {@link FaceTracker} instead of a fresh detection.
+	 */
+	public List<Mat> preprocessFaces(RectVector rectVector, Mat image, Size targetSize, double paddingAmount) {
+		return preprocessFaces(rectVector, image, targetSize, paddingAmount, new ArrayList<Mat>());
+	}
+
+	/**
+	 * Same as {@link #preprocessFaces(RectVector, Mat, Size, double)}, but
+	 * reuses the Mats of the given list, see
+	 * {@link #cropFaces(RectVector, Mat, Size, double, List)}.
+	 */
+	public List<Mat> preprocessFaces(RectVector rectVector, Mat image, Size targetSize, double paddingAmount,
+			List<Mat> buffers) {
 		List<Mat> faces = null;
 		try {
 
-			faces = extractFaces(rectVector, image, targetSize, paddingAmount);
+			faces = cropFaces(rectVector, image, targetSize, paddingAmount, buffers);
 		} catch (Exception e) {
+			errors.increment();
 			System.out.println(e.getMessage());
 		}
 
 		if (faces == null) {
 			return Collections.<Mat>emptyList();
 		}
-		List<Mat> alignedFaces = new ArrayList<>();
-		for (int i = 0; i < faces.size(); i++) {
-			try {
-				alignedFaces.add(alignFace(faces.get(i)));
-			} catch (Exception e) {
+		if (!alignFaces) {
+			return faces;
+		}
+		if (alignmentExecutor == null || faces.size() < 2) {
+			for (int i = 0; i < faces.size(); i++) {
+				align(faces.get(i));
 			}
+			return faces;
+		}
 
+		List<Callable<Boolean>> alignments = new ArrayList<>(faces.size());
+		for (Mat face : faces) {
+			alignments.add(() -> align(face));
+		}
+		try {
+			alignmentExecutor.invokeAll(alignments);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 
 		return faces;
 	}
 
+	/**
+	 * Aligns the face in place, or leaves it as it is if no eyes are found
+	 * on either side. Safe to call from several threads if the preprocessor
+	 * was built from cascade pools.
+	 * 
+	 * @return true if the face was aligned
+	 */
+	public boolean align(Mat face) {
+		long start = System.nanoTime();
+		boolean aligned = true;
+		try {
+			Mat alignedFace = ALIGNMENT_BUFFERS.get().alignedFace;
+			alignFace(face, alignedFace);
+			alignedFace.copyTo(face);
+			alignedFaces.increment();
+		} catch (Exception e) {
+			aligned = false;
+			unalignedFaces.increment();
+		}
+		alignLatency.recordSince(start);
+		return aligned;
+	}
+
+	public boolean isAlignFaces() {
+		return alignFaces;
+	}
+
+	/**
+	 * Turns the alignment of the cropped faces on or off; takes effect from
+	 * the next frame on.
+	 */
+	public void setAlignFaces(boolean alignFaces) {
+		this.alignFaces = alignFaces;
+	}
+
+	/**
+	 * @return eye detection and alignment latency per face, over all
+	 *         preprocessors
+	 */
+	public static String getAlignmentStatistics() {
+		return String.format("Aligned %d of %d faces, %.2f ms average / %.2f ms max per face", alignedFaces.sum(),
+				alignLatency.getCount(), alignLatency.getMeanNanos() / 1e6, alignLatency.getMaxNanos() / 1e6);
+	}
+
 	public static void main(String[] args) {
 
 		FaceRecognizer.loadApplicationProperties();
@@ -94,98 +243,286 @@ public class FacePreprocessor {
 	}
 
 	public Mat alignFace(Mat image) throws Exception {
+		return alignFace(image, new Mat());
+	}
 
-		// detect eyes
-		RectVector rectVector = new RectVector();
-		this.eyeClassifier.detectMultiScale(image, rectVector);
-
-		// ensure minimum of 2 eyes detected
-		if (rectVector.size() < 2) {
-			throw new Exception("Must have at least 2 eyes.");
-		}
-
-		// choose 2 eyes from the results such that the angle between them is minimized
-		double minAngle = 7.0; // max possible angle is 2π < 7.0
-		int mini1 = 1, mini2 = 1;
-		for (int i = 0; i < rectVector.size(); i++) {
-			for (int j = 0; j < rectVector.size(); j++) {
-				double newAngle = Point.angle1(Point.centre(rectVector.get(i)), Point.centre(rectVector.get(j)));
-				if (newAngle < minAngle) {
-					minAngle = newAngle;
-					mini1 = i;
-					mini2 = j;
+	/**
+	 * Aligns the face into the given Mat, which is reused if it already has
+	 * the right size.
+	 * 
+	 * @return aligned
+	 */
+	public Mat alignFace(Mat image, Mat aligned) throws Exception {
+		RectVector eyeRects = ALIGNMENT_BUFFERS.get().eyeRects;
+
+		// eyes are in the upper half of a face; searching only there is
+		// cheaper and keeps nostrils and mouth corners from passing for eyes
+		try (opencv_core.Rect upperHalf = new opencv_core.Rect(0, 0, image.cols(), image.rows() / 2);
+				Mat upperFace = new Mat(image, upperHalf)) {
+			if (eyePool != null) {
+				CascadeClassifier classifier = eyePool.acquire();
+				try {
+					classifier.detectMultiScale(upperFace, eyeRects);
+				} finally {
+					eyePool.release(classifier);
 				}
+			} else {
+				this.eyeClassifier.detectMultiScale(upperFace, eyeRects);
 			}
 		}
 
-		// calculate eye locations
-		Point eye1 = Point.centre(rectVector.get(mini1));
-		Point eye2 = Point.centre(rectVector.get(mini2));
+		// take the largest eye on either side of the middle of the face
+		int middle = image.cols() / 2;
+		Point eye1 = null;
+		Point eye2 = null;
+		int area1 = 0;
+		int area2 = 0;
+		for (int i = 0; i < eyeRects.size(); i++) {
+			try (opencv_core.Rect eye = eyeRects.get(i)) {
+				Point centre = Point.centre(eye);
+				int area = eye.width() * eye.height();
+				if (centre.x < middle) {
+					if (area > area1) {
+						eye1 = centre;
+						area1 = area;
+					}
+				} else if (area > area2) {
+					eye2 = centre;
+					area2 = area;
+				}
+			}
+		}
 
-		// ensure that eye1 is the left eye
-		if (eye1.x > eye2.x) {
-			Point tmp = eye1;
-			eye1 = eye2;
-			eye2 = tmp;
+		// ensure an eye on either side was detected
+		if (eye1 == null || eye2 == null) {
+			throw new Exception("Must have an eye on either side of the face.");
 		}
 
-		// calculate rotation matrix
+		// rotate about the point between the eyes, which the rotation leaves
+		// where it is, so centring the face is a shift of that point added to
+		// the same matrix and the image is warped once
 		Point centreRotation = Point.centre(eye1, eye2);
 		double angleRotation = Point.angle2(eye1, eye2);
+		int xTrans = middle - centreRotation.x;
+
+		try (Size size = image.size(); opencv_core.Point2f centre = centreRotation.toPoint2f();
+				Mat transform = getRotationMatrix2D(centre, Math.toDegrees(angleRotation), 1.0)) {
+			DoubleIndexer indexer = transform.createIndexer();
+			try {
+				indexer.put(0, 2, indexer.get(0, 2) + xTrans);
+			} finally {
+				indexer.release();
+			}
+			warpAffine(image, aligned, transform, size);
+		}
 
-		Mat rotationMatrix = getRotationMatrix2D(centreRotation.toPoint2f(), Math.toDegrees(angleRotation), 1.0);
+		return aligned;
+	}
 
-		// rotate image
-		Mat rotatedImage = new Mat();
-		warpAffine(image, rotatedImage, rotationMatrix, image.size());
+	public List<Mat> extractFaces(RectVector faceRects, Mat image, Size targetSize, double proportionPadding) {
+		detectFaces(image, faceRects);
+		return cropFaces(faceRects, image, targetSize, proportionPadding);
+	}
 
-		// calculate rotated eye positions
-		double angleRotation2 = -Point.angle2(eye1, eye2);
-		eye1.rotate(angleRotation2, centreRotation);
-		eye2.rotate(angleRotation2, centreRotation);
+	public DetectionSettings getDetectionSettings() {
+		return detectionSettings;
+	}
 
-		// calculate x translation
-		int eyeMid = Point.x_midpoint(eye1, eye2);
-		int imageMid = Point.x_midpoint(new Point(0, 0), new Point(image.cols(), image.rows()));
-		int xTrans = imageMid - eyeMid;
+	/**
+	 * Takes effect from the next detection on; may be called from any thread.
+	 */
+	public void setDetectionSettings(DetectionSettings detectionSettings) {
+		this.detectionSettings = detectionSettings;
+	}
 
-		// calculate y translation
-		// int desiredY = 11 * image.rows() / 32; //a little higher than the middle of
-		// the image
-		// int yTrans = desiredY - eye1.y;
+	/**
+	 * Runs the face cascade over the image, on the whole frame or coarse to
+	 * fine depending on the {@link DetectionSettings}.
+	 */
+	public void detectFaces(Mat image, RectVector faceRects) {
+		long start = System.nanoTime();
+		if (facePool == null) {
+			detectFaces(image, faceRects, faceClassifier);
+		} else {
+			CascadeClassifier classifier = facePool.acquire();
+			try {
+				detectFaces(image, faceRects, classifier);
+			} finally {
+				facePool.release(classifier);
+			}
+		}
+		detectLatency.recordSince(start);
+	}
 
-		// construct translation matrix
-		Mat xTranslationMatrix = new Mat(2, 3, CV_32F);
-		FloatRawIndexer i = xTranslationMatrix.createIndexer();
-		i.put(0, 0, 1);
-		i.put(0, 1, 0);
-		i.put(0, 2, xTrans);
-		i.put(1, 0, 0);
-		i.put(1, 1, 1);
-		i.put(1, 2, 0); // y_trans
+	/**
+	 * Runs the face cascade over a region of the image only, for faces of the
+	 * sizes a detection of the whole image looks for. The faces found are
+	 * added to the list in image coordinates, unless they overlap one that is
+	 * already there; the caller closes them.
+	 */
+	public void detectFaces(Mat image, opencv_core.Rect region, List<opencv_core.Rect> found) {
+		long start = System.nanoTime();
+		DetectionSettings settings = detectionSettings;
+		int minSize = (int) Math.round(image.rows() * settings.getMinFaceSize());
+		// no limit on the face size is the whole region
+		int maxSize = Math.min(region.width(), region.height());
+		if (settings.getMaxFaceSize() > 0) {
+			maxSize = Math.min((int) Math.round(image.rows() * settings.getMaxFaceSize()), maxSize);
+		}
+		if (maxSize < minSize) {
+			return;
+		}
+		minFaceSize.width(minSize).height(minSize);
+		maxFaceSize.width(maxSize).height(maxSize);
+
+		CascadeClassifier classifier = facePool == null ? faceClassifier : facePool.acquire();
+		try (Mat roi = new Mat(image, region)) {
+			classifier.detectMultiScale(roi, refinedRects, settings.getScaleFactor(), settings.getMinNeighbours(), 0,
+					minFaceSize, maxFaceSize);
+		} finally {
+			if (facePool != null) {
+				facePool.release(classifier);
+			}
+		}
+		for (int i = 0; i < refinedRects.size(); i++) {
+			try (opencv_core.Rect rect = refinedRects.get(i)) {
+				addUnlessDuplicate(found, new opencv_core.Rect(rect.x() + region.x(), rect.y() + region.y(),
+						rect.width(), rect.height()));
+			}
+		}
+		detectLatency.recordSince(start);
+	}
 
-		// translate image
-		Mat translatedImage = new Mat();
-		warpAffine(rotatedImage, translatedImage, xTranslationMatrix, image.size());
+	private void detectFaces(Mat image, RectVector faceRects, CascadeClassifier faceClassifier) {
+		DetectionSettings settings = detectionSettings;
+		if (settings.getMode() == DetectionSettings.Mode.PYRAMID && settings.getDownscale() < 1) {
+			detectPyramid(image, faceRects, settings, faceClassifier);
+			return;
+		}
 
-		return translatedImage;
+		// by default the minimum size of face to grab is 2% of the source image height
+		int absoluteFaceSize = (int) Math.round(image.rows() * settings.getMinFaceSize());
+		int maxSize = (int) Math.round(image.rows() * settings.getMaxFaceSize());
+
+		minFaceSize.width(absoluteFaceSize).height(absoluteFaceSize);
+		maxFaceSize.width(maxSize).height(maxSize);
+		faceClassifier.detectMultiScale(image, faceRects, settings.getScaleFactor(),
+				settings.getMinNeighbours(), 0, minFaceSize, maxFaceSize);
 	}
 
-	public List<Mat> extractFaces(RectVector faceRects, Mat image, Size targetSize, double proportionPadding) {
+	/**
+	 * Detects on a downscaled copy of the image, then again at full
+	 * resolution in a padded region around every face found, looking only
+	 * for faces of about the same size.
+	 */
+	private void detectPyramid(Mat image, RectVector faceRects, DetectionSettings settings,
+			CascadeClassifier faceClassifier) {
+		double downscale = settings.getDownscale();
+		smallSize.width((int) Math.round(image.cols() * downscale)).height((int) Math.round(image.rows() * downscale));
+		resize(image, smallImage, smallSize, 0, 0, INTER_AREA);
+
+		int minSize = (int) Math.round(image.rows() * settings.getMinFaceSize() * downscale);
+		int maxSize = (int) Math.round(image.rows() * settings.getMaxFaceSize() * downscale);
+		minFaceSize.width(minSize).height(minSize);
+		maxFaceSize.width(maxSize).height(maxSize);
+		faceClassifier.detectMultiScale(smallImage, coarseRects, settings.getScaleFactor(),
+				settings.getMinNeighbours(), 0, minFaceSize, maxFaceSize);
+
+		List<opencv_core.Rect> found = new ArrayList<>();
+		try {
+			for (int i = 0; i < coarseRects.size(); i++) {
+				try (opencv_core.Rect coarse = coarseRects.get(i)) {
+					refine(image, coarse, downscale, settings, faceClassifier, found);
+				}
+			}
+			faceRects.resize(found.size());
+			for (int i = 0; i < found.size(); i++) {
+				faceRects.put(i, found.get(i));
+			}
+		} finally {
+			for (opencv_core.Rect rect : found) {
+				rect.close();
+			}
+		}
+	}
 
-		// minimum size of face to grab is 2% of the source image height
-		int absoluteFaceSize = Math.round(image.rows() * 0.02f);
+	private void refine(Mat image, opencv_core.Rect coarse, double downscale, DetectionSettings settings,
+			CascadeClassifier faceClassifier, List<opencv_core.Rect> found) {
+		int x = (int) (coarse.x() / downscale);
+		int y = (int) (coarse.y() / downscale);
+		int size = (int) (coarse.width() / downscale);
+		int padding = (int) (size * settings.getRefinePadding());
+		int left = Math.max(0, x - padding);
+		int top = Math.max(0, y - padding);
+		int right = Math.min(image.cols(), x + size + padding);
+		int bottom = Math.min(image.rows(), y + size + padding);
+
+		int before = found.size();
+		try (opencv_core.Rect window = new opencv_core.Rect(left, top, right - left, bottom - top);
+				Mat roi = new Mat(image, window)) {
+			// a face the coarse pass found is within one step of the
+			// downscaled scale, so a narrow range of sizes is enough
+			minFaceSize.width((int) (size * 0.75)).height((int) (size * 0.75));
+			int maxSize = Math.min(right - left, bottom - top);
+			maxFaceSize.width(maxSize).height(maxSize);
+			faceClassifier.detectMultiScale(roi, refinedRects, settings.getScaleFactor(),
+					settings.getMinNeighbours(), 0, minFaceSize, maxFaceSize);
+			for (int i = 0; i < refinedRects.size(); i++) {
+				try (opencv_core.Rect rect = refinedRects.get(i)) {
+					addUnlessDuplicate(found, new opencv_core.Rect(rect.x() + left, rect.y() + top, rect.width(),
+							rect.height()));
+				}
+			}
+		}
+		if (found.size() == before) {
+			// keep the coarse face rather than lose it, just less precisely placed
+			addUnlessDuplicate(found,
+					new opencv_core.Rect(x, y, Math.min(size, image.cols() - x), Math.min(size, image.rows() - y)));
+		}
+	}
+
+	/**
+	 * Padded regions of neighbouring faces overlap, so the same face can be
+	 * found twice.
+	 */
+	static void addUnlessDuplicate(List<opencv_core.Rect> found, opencv_core.Rect rect) {
+		for (opencv_core.Rect other : found) {
+			if (FaceTracker.overlap(rect, other) > 0.5) {
+				rect.close();
+				return;
+			}
+		}
+		found.add(rect);
+	}
 
-		this.faceClassifier.detectMultiScale(image, faceRects, 1.04, 2, 0, new Size(absoluteFaceSize, absoluteFaceSize),
-				new Size());
+	/**
+	 * Cuts the padded face regions out of the image and resizes them to the
+	 * target size.
+	 */
+	public List<Mat> cropFaces(RectVector faceRects, Mat image, Size targetSize, double proportionPadding) {
+		return cropFaces(faceRects, image, targetSize, proportionPadding, new ArrayList<Mat>());
+	}
+
+	/**
+	 * Crops the faces into the Mats of the given list, adding Mats only when
+	 * it holds fewer than there are faces. A caller that keeps the list from
+	 * frame to frame stops allocating once the number of faces settles.
+	 * 
+	 * @return the first faceRects.size() Mats of the list
+	 */
+	public List<Mat> cropFaces(RectVector faceRects, Mat image, Size targetSize, double proportionPadding,
+			List<Mat> faces) {
 
 		// get image dimensions
 		int imageHeight = image.rows();
 		int imageWidth = image.cols();
 
 		// extract each face
-		ArrayList<Mat> faces = new ArrayList<>();
-		for (int i = 0; i < faceRects.size(); i++) {
+		int count = (int) faceRects.size();
+		while (faces.size() < count) {
+			faces.add(new Mat());
+		}
+		for (int i = 0; i < count; i++) {
 			opencv_core.Rect currentRect = faceRects.get(i);
 
 			// set padding to be either the prescribed padding or the smallest amount to the
@@ -202,13 +539,13 @@ public class FacePreprocessor {
 			currentRect.width(currentRect.width() + 2 * maxPadding);
 			currentRect.height(currentRect.height() + 2 * maxPadding);
 
-			// add to final list
-			Mat face = new Mat(image, currentRect);
-			// resize faces to standard size
-			resize(face, face, targetSize);
-			faces.add(face);
+			// resize faces to standard size, straight from a view of the image
+			try (Mat face = new Mat(image, currentRect)) {
+				resize(face, faces.get(i), targetSize);
+			}
+			currentRect.close();
 		}
 
-		return faces;
+		return faces.subList(0, count);
 	}
 }
@@ -0,0 +1,288 @@
+package application.facerecognizer;
+
+import static org.bytedeco.javacpp.opencv_core.minMaxLoc;
+import static org.bytedeco.javacpp.opencv_imgproc.TM_CCOEFF_NORMED;
+import static org.bytedeco.javacpp.opencv_imgproc.matchTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacpp.opencv_core.RectVector;
+
+/**
+ * Runs the full face cascade only on keyframes and carries the faces forward
+ * in between by template matching inside a small window around each face's
+ * previous location. A full detection is forced as soon as any face can no
+ * longer be matched with enough confidence.
+ *
+ * Every face gets a track id that stays the same for as long as the face is
+ * followed, including across detections, where new faces are matched to the
+ * previous ones by overlap.
+ *
+ * A tracker keeps state between frames, so it must see the frames of one
+ * stream in order and from one thread at a time.
+ */
+public class FaceTracker {
+
+	private static final long REPORT_INTERVAL_NANOS = 5_000_000_000L;
+	// minimum intersection over union for a detection to continue a track
+	private static final double MIN_OVERLAP = 0.3;
+
+	private final FacePreprocessor preprocessor;
+	private volatile int detectionInterval;
+	private final double minConfidence;
+	private final double searchMargin;
+
+	private final List<Rect> trackedRects = new ArrayList<>();
+	private final List<Mat> templates = new ArrayList<>();
+	// buffers reused by every call to track()
+	private final Mat matchResult = new Mat();
+	private final DoublePointer maxVal = new DoublePointer(1);
+	private final org.bytedeco.javacpp.opencv_core.Point maxLoc = new org.bytedeco.javacpp.opencv_core.Point();
+	private int[] trackIds = new int[0];
+	private double[] trackConfidences = new double[0];
+	private int[] endedTracks = new int[0];
+	private int nextTrackId = 0;
+	// scans only the changed parts of the frames on a detection, if set
+	private MotionGate motionGate = null;
+	private int framesSinceDetection = 0;
+
+	private long detections = 0;
+	private long trackedFrames = 0;
+	private long reportStart = System.nanoTime();
+
+	/**
+	 * @param detectionInterval
+	 *            run the full detection every this many frames
+	 * @param minConfidence
+	 *            normalized correlation (0..1) below which a face counts as lost
+	 * @param searchMargin
+	 *            how far around the previous location to search, as a fraction
+	 *            of the face size
+	 */
+	public FaceTracker(FacePreprocessor preprocessor, int detectionInterval, double minConfidence,
+			double searchMargin) {
+		this.preprocessor = preprocessor;
+		this.detectionInterval = Math.max(1, detectionInterval);
+		this.minConfidence = minConfidence;
+		this.searchMargin = searchMargin;
+	}
+
+	public int getDetectionInterval() {
+		return detectionInterval;
+	}
+
+	/**
+	 * Takes effect from the next frame on; may be called from any thread.
+	 */
+	public void setDetectionInterval(int detectionInterval) {
+		this.detectionInterval = Math.max(1, detectionInterval);
+	}
+
+	/**
+	 * Makes the detections go through the gate, which scans only the parts of
+	 * the frame that changed. The gate sees the tracked frames as well, to
+	 * keep its background up to date.
+	 */
+	public void setMotionGate(MotionGate motionGate) {
+		this.motionGate = motionGate;
+	}
+
+	/**
+	 * Finds the faces in the next frame, either by detection or by tracking.
+	 */
+	public void detect(Mat image, RectVector faceRects) {
+		detect(image, faceRects, preprocessor);
+	}
+
+	/**
+	 * Same as {@link #detect(Mat, RectVector)}, but runs a full detection with
+	 * the given preprocessor, e.g. the one of the thread the tracker happens
+	 * to be called from.
+	 */
+	public void detect(Mat image, RectVector faceRects, FacePreprocessor detector) {
+		boolean tracked = framesSinceDetection < detectionInterval - 1 && track(image, faceRects);
+
+		if (tracked) {
+			framesSinceDetection++;
+			trackedFrames++;
+			if (motionGate != null) {
+				motionGate.observe(image);
+			}
+		} else {
+			if (motionGate != null) {
+				motionGate.detect(image, faceRects, detector);
+			} else {
+				detector.detectFaces(image, faceRects);
+			}
+			assignTracks(faceRects);
+			framesSinceDetection = 0;
+			detections++;
+		}
+		remember(image, faceRects);
+		report();
+	}
+
+	/**
+	 * @return the track id of each face found by the last call to
+	 *         {@link #detect(Mat, RectVector)}
+	 */
+	public int[] getTrackIds() {
+		return trackIds;
+	}
+
+	/**
+	 * @return how well each face of the last frame matched its previous
+	 *         appearance, 1.0 for freshly detected faces
+	 */
+	public double[] getTrackConfidences() {
+		return trackConfidences;
+	}
+
+	/**
+	 * @return ids of the tracks that were lost in the last frame
+	 */
+	public int[] getEndedTracks() {
+		return endedTracks;
+	}
+
+	/**
+	 * @return false if any face was lost and a detection is needed
+	 */
+	private boolean track(Mat image, RectVector faceRects) {
+		List<Rect> found = new ArrayList<>(trackedRects.size());
+		double[] confidences = new double[trackedRects.size()];
+		try {
+			for (int i = 0; i < trackedRects.size(); i++) {
+				Rect previous = trackedRects.get(i);
+				try (Rect window = searchWindow(previous, image)) {
+					if (window.width() < previous.width() || window.height() < previous.height()) {
+						return false;
+					}
+
+					try (Mat roi = new Mat(image, window)) {
+						matchTemplate(roi, templates.get(i), matchResult, TM_CCOEFF_NORMED);
+						minMaxLoc(matchResult, null, maxVal, null, maxLoc, null);
+					}
+					if (maxVal.get() < minConfidence) {
+						return false;
+					}
+					confidences[i] = maxVal.get();
+					found.add(new Rect(window.x() + maxLoc.x(), window.y() + maxLoc.y(), previous.width(),
+							previous.height()));
+				}
+			}
+
+			faceRects.resize(found.size());
+			for (int i = 0; i < found.size(); i++) {
+				faceRects.put(i, found.get(i));
+			}
+		} finally {
+			for (Rect rect : found) {
+				rect.close();
+			}
+		}
+		trackConfidences = confidences;
+		endedTracks = new int[0];
+		return true;
+	}
+
+	private void assignTracks(RectVector faceRects) {
+		int[] ids = new int[(int) faceRects.size()];
+		boolean[] continued = new boolean[trackedRects.size()];
+
+		for (int i = 0; i < ids.length; i++) {
+			int best = -1;
+			double bestOverlap = MIN_OVERLAP;
+			try (Rect rect = faceRects.get(i)) {
+				for (int j = 0; j < trackedRects.size(); j++) {
+					double overlap = overlap(rect, trackedRects.get(j));
+					if (!continued[j] && overlap >= bestOverlap) {
+						best = j;
+						bestOverlap = overlap;
+					}
+				}
+			}
+			if (best >= 0) {
+				continued[best] = true;
+				ids[i] = trackIds[best];
+			} else {
+				ids[i] = nextTrackId++;
+			}
+		}
+
+		List<Integer> ended = new ArrayList<>();
+		for (int j = 0; j < continued.length; j++) {
+			if (!continued[j]) {
+				ended.add(trackIds[j]);
+			}
+		}
+		endedTracks = ended.stream().mapToInt(Integer::intValue).toArray();
+		trackIds = ids;
+		trackConfidences = new double[ids.length];
+		Arrays.fill(trackConfidences, 1.0);
+	}
+
+	/**
+	 * @return intersection over union of the two rectangles
+	 */
+	public static double overlap(Rect a, Rect b) {
+		int width = Math.min(a.x() + a.width(), b.x() + b.width()) - Math.max(a.x(), b.x());
+		int height = Math.min(a.y() + a.height(), b.y() + b.height()) - Math.max(a.y(), b.y());
+		if (width <= 0 || height <= 0) {
+			return 0;
+		}
+		double intersection = (double) width * height;
+		return intersection / (a.area() + b.area() - intersection);
+	}
+
+	private Rect searchWindow(Rect rect, Mat image) {
+		int marginX = (int) (rect.width() * searchMargin);
+		int marginY = (int) (rect.height() * searchMargin);
+		int x = Math.max(0, rect.x() - marginX);
+		int y = Math.max(0, rect.y() - marginY);
+		int right = Math.min(image.cols(), rect.x() + rect.width() + marginX);
+		int bottom = Math.min(image.rows(), rect.y() + rect.height() + marginY);
+		return new Rect(x, y, Math.max(0, right - x), Math.max(0, bottom - y));
+	}
+
+	private void remember(Mat image, RectVector faceRects) {
+		for (Rect rect : trackedRects) {
+			rect.close();
+		}
+		trackedRects.clear();
+
+		// templates are copied into the buffers of the previous frame, which
+		// only reallocate when a face changes size. The rectangles are copied
+		// too: the vector's are views that the caller pads for cropping, and
+		// that go with the vector when it is resized or recycled.
+		for (int i = 0; i < faceRects.size(); i++) {
+			try (Rect rect = faceRects.get(i)) {
+				if (i == templates.size()) {
+					templates.add(new Mat());
+				}
+				try (Mat roi = new Mat(image, rect)) {
+					roi.copyTo(templates.get(i));
+				}
+				trackedRects.add(new Rect(rect));
+			}
+		}
+	}
+
+	private void report() {
+		long elapsed = System.nanoTime() - reportStart;
+		if (elapsed < REPORT_INTERVAL_NANOS) {
+			return;
+		}
+		double seconds = elapsed / 1e9;
+		System.out.println(String.format("Face detection: %.1f detections/s, %.1f tracked frames/s",
+				detections / seconds, trackedFrames / seconds));
+		detections = 0;
+		trackedFrames = 0;
+		reportStart = System.nanoTime();
+	}
+}
@@ -0,0 +1,318 @@
+package application.facerecognizer;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+import static org.bytedeco.javacpp.opencv_imgcodecs.IMREAD_GRAYSCALE;
+import static org.bytedeco.javacpp.opencv_imgcodecs.imdecode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * Keeps the preprocessed faces of a data set, and their LBP histograms, in a
+ * folder, so that later runs over the same images skip decoding, alignment
+ * and feature extraction. There is one file per image and variant of the
+ * preprocessing, named after a hash of the two. An entry is only used while
+ * the size, modification time and CRC32 of the image are the ones it was made
+ * from; otherwise it is made again from the image and replaced.
+ *
+ * An entry is big endian: magic, version, path, size, modification time,
+ * CRC32, variant, rows, cols and the pixels of the face, then the length of
+ * the histogram, 0 if there is none, the LBP parameters and the histogram.
+ * Strings are a length followed by UTF-8.
+ *
+ * Projections onto Eigen or Fisher faces are not kept: they belong to the
+ * model they were made with, and the native model computes them itself when
+ * it trains.
+ */
+public class FeatureCache {
+
+	private static final int MAGIC = 0x46434331; // FCC1
+	private static final int VERSION = 1;
+
+	/**
+	 * An image as found on disk.
+	 */
+	private static class Source {
+		final String path;
+		final long size;
+		final long modified;
+		final long crc;
+		final byte[] content;
+
+		Source(Path path) throws IOException {
+			this.path = path.toAbsolutePath().toString();
+			this.modified = Files.getLastModifiedTime(path).toMillis();
+			this.content = Files.readAllBytes(path);
+			this.size = content.length;
+			CRC32 crc32 = new CRC32();
+			crc32.update(content);
+			this.crc = crc32.getValue();
+		}
+	}
+
+	private static class Entry {
+		final int rows;
+		final int cols;
+		final byte[] pixels;
+		final int[] lbpParameters;
+		final float[] histogram;
+
+		Entry(int rows, int cols, byte[] pixels, int[] lbpParameters, float[] histogram) {
+			this.rows = rows;
+			this.cols = cols;
+			this.pixels = pixels;
+			this.lbpParameters = lbpParameters;
+			this.histogram = histogram;
+		}
+	}
+
+	private static class Statistics {
+		final LongAdder hits = new LongAdder();
+		final LongAdder misses = new LongAdder();
+		// entries found but made from another version of the image
+		final LongAdder stale = new LongAdder();
+		final LongAdder hitNanos = new LongAdder();
+		final LongAdder missNanos = new LongAdder();
+
+		void hit(long start) {
+			hits.increment();
+			hitNanos.add(System.nanoTime() - start);
+		}
+
+		void miss(long start) {
+			misses.increment();
+			missNanos.add(System.nanoTime() - start);
+		}
+
+		String format(String name) {
+			long hitCount = hits.sum();
+			long missCount = misses.sum();
+			long lookups = hitCount + missCount;
+			// a hit saves what a miss costs, less what the hit costs itself
+			double saved = missCount == 0 || hitCount == 0 ? 0
+					: hitCount * Math.max(0.0, (double) missNanos.sum() / missCount - (double) hitNanos.sum() / hitCount);
+			return String.format("%s: %d hits, %d misses (%.1f%% hit rate, %d stale), about %.2f s saved", name,
+					hitCount, missCount, lookups == 0 ? 0.0 : 100.0 * hitCount / lookups, stale.sum(), saved / 1e9);
+		}
+	}
+
+	private final Path folder;
+	private final String variant;
+	private final Consumer<Mat> preprocessing;
+	private final Statistics faces = new Statistics();
+	private final Statistics histograms = new Statistics();
+
+	/**
+	 * @param folder
+	 *            where the entries are kept, created when needed
+	 * @param variant
+	 *            names the preprocessing, e.g. "aligned"; entries of other
+	 *            variants are left alone
+	 * @param preprocessing
+	 *            applied to the decoded grayscale image before it is kept,
+	 *            null to keep it as it is; it is called from several threads
+	 */
+	public FeatureCache(Path folder, String variant, Consumer<Mat> preprocessing) {
+		this.folder = folder;
+		this.variant = variant;
+		this.preprocessing = preprocessing;
+	}
+
+	/**
+	 * @return the preprocessed grayscale face of the sample, to be released by
+	 *         the caller
+	 */
+	public Mat face(FaceDatasetLoader.Sample sample) throws IOException {
+		long start = System.nanoTime();
+		Source source = new Source(sample.getPath());
+		Entry entry = lookup(source, faces);
+		if (entry != null) {
+			Mat face = new Mat(entry.rows, entry.cols, CV_8UC1);
+			face.data().put(entry.pixels);
+			faces.hit(start);
+			return face;
+		}
+
+		Mat face = decode(source);
+		store(source, pixels(face), face.rows(), face.cols(), null, null);
+		faces.miss(start);
+		return face;
+	}
+
+	/**
+	 * @return the histogram of the preprocessed face of the sample
+	 */
+	public float[] histogram(FaceDatasetLoader.Sample sample, LbphHistogram lbp) throws IOException {
+		long start = System.nanoTime();
+		Source source = new Source(sample.getPath());
+		int[] parameters = { lbp.getRadius(), lbp.getNeighbors(), lbp.getGridX(), lbp.getGridY() };
+		Entry entry = lookup(source, histograms);
+		if (entry != null && entry.histogram != null && Arrays.equals(entry.lbpParameters, parameters)) {
+			histograms.hit(start);
+			return entry.histogram;
+		}
+
+		float[] histogram;
+		if (entry != null) {
+			// the face is still good, only the histogram is missing
+			histogram = lbp.compute(entry.pixels, entry.rows, entry.cols);
+			store(source, entry.pixels, entry.rows, entry.cols, parameters, histogram);
+		} else {
+			Mat face = decode(source);
+			try {
+				byte[] pixels = pixels(face);
+				histogram = lbp.compute(pixels, face.rows(), face.cols());
+				store(source, pixels, face.rows(), face.cols(), parameters, histogram);
+			} finally {
+				face.release();
+			}
+		}
+		histograms.miss(start);
+		return histogram;
+	}
+
+	private Mat decode(Source source) throws IOException {
+		Mat face;
+		try (Mat encoded = new Mat(source.content)) {
+			face = imdecode(encoded, IMREAD_GRAYSCALE);
+		}
+		if (face.empty()) {
+			face.release();
+			throw new IOException("Could not decode " + source.path);
+		}
+		if (preprocessing != null) {
+			preprocessing.accept(face);
+		}
+		return face;
+	}
+
+	private static byte[] pixels(Mat face) {
+		Mat continuous = face.isContinuous() ? face : face.clone();
+		byte[] pixels = new byte[face.rows() * face.cols()];
+		continuous.data().get(pixels);
+		if (continuous != face) {
+			continuous.release();
+		}
+		return pixels;
+	}
+
+	private Entry lookup(Source source, Statistics statistics) throws IOException {
+		ByteBuffer buffer;
+		try {
+			buffer = ByteBuffer.wrap(Files.readAllBytes(entryFile(source)));
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				statistics.stale.increment();
+				return null;
+			}
+			if (!getString(buffer).equals(source.path) || buffer.getLong() != source.size
+					|| buffer.getLong() != source.modified || buffer.getLong() != source.crc
+					|| !getString(buffer).equals(variant)) {
+				statistics.stale.increment();
+				return null;
+			}
+			int rows = buffer.getInt();
+			int cols = buffer.getInt();
+			byte[] pixels = new byte[rows * cols];
+			buffer.get(pixels);
+			int length = buffer.getInt();
+			if (length == 0) {
+				return new Entry(rows, cols, pixels, null, null);
+			}
+			int[] parameters = new int[4];
+			buffer.asIntBuffer().get(parameters);
+			buffer.position(buffer.position() + 4 * parameters.length);
+			float[] histogram = new float[length];
+			buffer.asFloatBuffer().get(histogram);
+			return new Entry(rows, cols, pixels, parameters, histogram);
+		} catch (RuntimeException e) {
+			// cut short or otherwise damaged, it will be written again
+			statistics.stale.increment();
+			return null;
+		}
+	}
+
+	private void store(Source source, byte[] pixels, int rows, int cols, int[] parameters, float[] histogram)
+			throws IOException {
+		byte[] path = source.path.getBytes(StandardCharsets.UTF_8);
+		byte[] variantName = variant.getBytes(StandardCharsets.UTF_8);
+		int histogramBytes = histogram == null ? 0 : 4 * (parameters.length + histogram.length);
+		ByteBuffer buffer = ByteBuffer.allocate(
+				4 * 2 + 4 + path.length + 8 * 3 + 4 + variantName.length + 4 * 2 + pixels.length + 4 + histogramBytes);
+		buffer.putInt(MAGIC).putInt(VERSION);
+		buffer.putInt(path.length).put(path);
+		buffer.putLong(source.size).putLong(source.modified).putLong(source.crc);
+		buffer.putInt(variantName.length).put(variantName);
+		buffer.putInt(rows).putInt(cols).put(pixels);
+		if (histogram == null) {
+			buffer.putInt(0);
+		} else {
+			buffer.putInt(histogram.length);
+			for (int parameter : parameters) {
+				buffer.putInt(parameter);
+			}
+			buffer.asFloatBuffer().put(histogram);
+		}
+
+		// written aside and moved in place, so a reader never sees half an entry
+		Files.createDirectories(folder);
+		Path file = entryFile(source);
+		Path temporary = Files.createTempFile(folder, file.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temporary, buffer.array());
+			try {
+				Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private Path entryFile(Source source) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(source.path.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(variant.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest.digest()) {
+				name.append(String.format("%02x", b));
+			}
+			return folder.resolve(name.append(".bin").toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void printStatistics() {
+		System.out.println(faces.format("Feature cache, faces"));
+		if (histograms.hits.sum() + histograms.misses.sum() > 0) {
+			System.out.println(histograms.format("Feature cache, histograms"));
+		}
+	}
+}
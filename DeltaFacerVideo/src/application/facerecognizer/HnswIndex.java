@@ -0,0 +1,308 @@
+package application.facerecognizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ * Approximate nearest neighbour index over fixed length vectors, built as a
+ * hierarchical navigable small world graph (HNSW). Every vector is a node
+ * linked to its closest neighbours on a random number of layers; a search
+ * walks greedily down from the sparse top layer and then explores the bottom
+ * layer with a candidate list of size ef. A larger ef finds the true nearest
+ * neighbour more often at the cost of more distance computations.
+ *
+ * Adding vectors is not thread safe; searching is, as long as nothing is
+ * added at the same time.
+ */
+public class HnswIndex {
+
+	private static class Candidate implements Comparable<Candidate> {
+		final int node;
+		final float distance;
+
+		Candidate(int node, float distance) {
+			this.node = node;
+			this.distance = distance;
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			return Float.compare(distance, other.distance);
+		}
+	}
+
+	private final int dimensions;
+	private final int m;
+	private final int maxM0;
+	private final int efConstruction;
+	private final double levelMultiplier;
+	private final Random random = new Random(42);
+
+	private float[][] vectors = new float[16][];
+	private int[] labels = new int[16];
+	// links[node][layer] holds linkCounts[node][layer] neighbours
+	private int[][][] links = new int[16][][];
+	private int[][] linkCounts = new int[16][];
+	private int size = 0;
+	private int entryPoint = -1;
+	private int maxLevel = -1;
+
+	/**
+	 * @param m
+	 *            links per node on the upper layers, twice as many on the
+	 *            bottom layer
+	 * @param efConstruction
+	 *            candidate list size while inserting
+	 */
+	public HnswIndex(int dimensions, int m, int efConstruction) {
+		this.dimensions = dimensions;
+		this.m = Math.max(2, m);
+		this.maxM0 = 2 * this.m;
+		this.efConstruction = Math.max(this.m, efConstruction);
+		this.levelMultiplier = 1 / Math.log(this.m);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int dimensions() {
+		return dimensions;
+	}
+
+	public void add(float[] vector, int label) {
+		if (vector.length != dimensions) {
+			throw new IllegalArgumentException(
+					"Vector has " + vector.length + " values, the index expects " + dimensions);
+		}
+		int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+		int node = allocate(vector, label, level);
+
+		if (entryPoint < 0) {
+			entryPoint = node;
+			maxLevel = level;
+			return;
+		}
+
+		int current = entryPoint;
+		for (int layer = maxLevel; layer > level; layer--) {
+			current = greedyClosest(vector, current, layer);
+		}
+		for (int layer = Math.min(level, maxLevel); layer >= 0; layer--) {
+			PriorityQueue<Candidate> found = searchLayer(vector, current, efConstruction, layer);
+			List<Candidate> nearest = new ArrayList<>(found);
+			Collections.sort(nearest);
+
+			int maxLinks = layer == 0 ? maxM0 : m;
+			for (int i = 0; i < Math.min(m, nearest.size()); i++) {
+				int neighbour = nearest.get(i).node;
+				link(node, neighbour, layer, maxLinks);
+				link(neighbour, node, layer, maxLinks);
+			}
+			current = nearest.get(0).node;
+		}
+
+		if (level > maxLevel) {
+			entryPoint = node;
+			maxLevel = level;
+		}
+	}
+
+	/**
+	 * @return the k nearest vectors found with a candidate list of size ef,
+	 *         closest first; distances are Euclidean
+	 */
+	public List<Neighbour> search(float[] query, int k, int ef) {
+		if (entryPoint < 0) {
+			return Collections.emptyList();
+		}
+		int current = entryPoint;
+		for (int layer = maxLevel; layer > 0; layer--) {
+			current = greedyClosest(query, current, layer);
+		}
+		List<Candidate> found = new ArrayList<>(searchLayer(query, current, Math.max(ef, k), 0));
+		Collections.sort(found);
+		return toNeighbours(found, k);
+	}
+
+	/**
+	 * Brute force search over every vector, the reference for measuring
+	 * recall.
+	 */
+	public List<Neighbour> exactSearch(float[] query, int k) {
+		return exactSearch(query, k, label -> true);
+	}
+
+	/**
+	 * Brute force search over the vectors whose label is accepted by the
+	 * filter.
+	 */
+	public List<Neighbour> exactSearch(float[] query, int k, IntPredicate labelFilter) {
+		PriorityQueue<Candidate> best = new PriorityQueue<>(k + 1, Collections.reverseOrder());
+		for (int node = 0; node < size; node++) {
+			if (!labelFilter.test(labels[node])) {
+				continue;
+			}
+			best.add(new Candidate(node, distance(query, vectors[node])));
+			if (best.size() > k) {
+				best.poll();
+			}
+		}
+		List<Candidate> found = new ArrayList<>(best);
+		Collections.sort(found);
+		return toNeighbours(found, k);
+	}
+
+	/**
+	 * @return approximate heap used by the vectors and the graph
+	 */
+	public long memoryBytes() {
+		long bytes = 0;
+		for (int node = 0; node < size; node++) {
+			bytes += 16 + 4L * dimensions;
+			for (int[] layer : links[node]) {
+				bytes += 16 + 4L * layer.length;
+			}
+		}
+		return bytes;
+	}
+
+	private List<Neighbour> toNeighbours(List<Candidate> found, int k) {
+		List<Neighbour> neighbours = new ArrayList<>(Math.min(k, found.size()));
+		for (int i = 0; i < Math.min(k, found.size()); i++) {
+			Candidate candidate = found.get(i);
+			neighbours.add(new Neighbour(labels[candidate.node], Math.sqrt(candidate.distance)));
+		}
+		return neighbours;
+	}
+
+	private int allocate(float[] vector, int label, int level) {
+		if (size == vectors.length) {
+			int capacity = size * 2;
+			vectors = Arrays.copyOf(vectors, capacity);
+			labels = Arrays.copyOf(labels, capacity);
+			links = Arrays.copyOf(links, capacity);
+			linkCounts = Arrays.copyOf(linkCounts, capacity);
+		}
+		int node = size++;
+		vectors[node] = vector.clone();
+		labels[node] = label;
+		links[node] = new int[level + 1][];
+		linkCounts[node] = new int[level + 1];
+		for (int layer = 0; layer <= level; layer++) {
+			links[node][layer] = new int[(layer == 0 ? maxM0 : m) + 1];
+		}
+		return node;
+	}
+
+	/**
+	 * Adds a directed link, dropping the farthest one if the node already has
+	 * as many links as allowed.
+	 */
+	private void link(int from, int to, int layer, int maxLinks) {
+		int[] neighbours = links[from][layer];
+		int count = linkCounts[from][layer];
+		for (int i = 0; i < count; i++) {
+			if (neighbours[i] == to) {
+				return;
+			}
+		}
+		neighbours[count++] = to;
+
+		if (count > maxLinks) {
+			int farthest = 0;
+			float farthestDistance = -1;
+			for (int i = 0; i < count; i++) {
+				float d = distance(vectors[from], vectors[neighbours[i]]);
+				if (d > farthestDistance) {
+					farthest = i;
+					farthestDistance = d;
+				}
+			}
+			neighbours[farthest] = neighbours[--count];
+		}
+		linkCounts[from][layer] = count;
+	}
+
+	private int greedyClosest(float[] query, int start, int layer) {
+		int current = start;
+		float currentDistance = distance(query, vectors[current]);
+		boolean improved = true;
+		while (improved) {
+			improved = false;
+			int[] neighbours = links[current][layer];
+			for (int i = 0; i < linkCounts[current][layer]; i++) {
+				float d = distance(query, vectors[neighbours[i]]);
+				if (d < currentDistance) {
+					current = neighbours[i];
+					currentDistance = d;
+					improved = true;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * @return up to ef closest nodes found on the layer, farthest on top
+	 */
+	private PriorityQueue<Candidate> searchLayer(float[] query, int start, int ef, int layer) {
+		boolean[] visited = new boolean[size];
+		PriorityQueue<Candidate> candidates = new PriorityQueue<>();
+		PriorityQueue<Candidate> found = new PriorityQueue<>(ef + 1, Collections.reverseOrder());
+
+		Candidate first = new Candidate(start, distance(query, vectors[start]));
+		visited[start] = true;
+		candidates.add(first);
+		found.add(first);
+
+		while (!candidates.isEmpty()) {
+			Candidate closest = candidates.poll();
+			if (closest.distance > found.peek().distance) {
+				break;
+			}
+			int[] neighbours = links[closest.node][layer];
+			for (int i = 0; i < linkCounts[closest.node][layer]; i++) {
+				int neighbour = neighbours[i];
+				if (visited[neighbour]) {
+					continue;
+				}
+				visited[neighbour] = true;
+				float d = distance(query, vectors[neighbour]);
+				if (found.size() < ef || d < found.peek().distance) {
+					Candidate candidate = new Candidate(neighbour, d);
+					candidates.add(candidate);
+					found.add(candidate);
+					if (found.size() > ef) {
+						found.poll();
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return squared Euclidean distance
+	 */
+	private static float distance(float[] a, float[] b) {
+		float sum0 = 0, sum1 = 0;
+		int i = 0;
+		for (; i + 1 < a.length; i += 2) {
+			float d0 = a[i] - b[i];
+			float d1 = a[i + 1] - b[i + 1];
+			sum0 += d0 * d0;
+			sum1 += d1 * d1;
+		}
+		if (i < a.length) {
+			float d = a[i] - b[i];
+			sum0 += d * d;
+		}
+		return sum0 + sum1;
+	}
+}
@@ -0,0 +1,240 @@
+package application.facerecognizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * LBP histograms of the enrolled faces, kept in a flat file of floats that is
+ * memory mapped rather than read onto the heap. The operating system pages
+ * the gallery in as it is scanned, so startup is immediate and the heap does
+ * not grow with the number of enrolled faces.
+ *
+ * A search scans the gallery in chunks, in parallel on the common fork-join
+ * pool, and keeps the k closest entries of each chunk.
+ *
+ * File layout (little endian): a header of magic, dimensions and entry count,
+ * then for every entry its label followed by its histogram.
+ */
+public class LbphGallery implements AutoCloseable {
+
+	// "LBPG"
+	private static final int MAGIC = 0x4c425047;
+	private static final int HEADER_BYTES = 16;
+	private static final int CHUNK_ENTRIES = 256;
+	// a single mapping can't be larger than 2 GB
+	private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+	/**
+	 * Streams entries into a new gallery file, or onto the end of an existing
+	 * one.
+	 */
+	public static class Writer implements AutoCloseable {
+		private final FileChannel channel;
+		private final ByteBuffer entry;
+		private final int dimensions;
+		private int count;
+
+		private Writer(FileChannel channel, int dimensions, int count) {
+			this.channel = channel;
+			this.dimensions = dimensions;
+			this.count = count;
+			this.entry = ByteBuffer.allocate(4 + 4 * dimensions).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		public void add(int label, float[] histogram) throws IOException {
+			if (histogram.length != dimensions) {
+				throw new IllegalArgumentException(
+						"Histogram has " + histogram.length + " values, the gallery expects " + dimensions);
+			}
+			entry.clear();
+			entry.putInt(label);
+			entry.asFloatBuffer().put(histogram);
+			entry.position(entry.capacity());
+			entry.flip();
+			while (entry.hasRemaining()) {
+				channel.write(entry);
+			}
+			count++;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				writeHeader(channel, dimensions, count);
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	private final FileChannel channel;
+	private final int dimensions;
+	private final int count;
+	private final int entryBytes;
+	private final int entriesPerSegment;
+	private final MappedByteBuffer[] segments;
+	private final ThreadLocal<float[]> scratch;
+
+	private LbphGallery(FileChannel channel, int dimensions, int count) throws IOException {
+		this.channel = channel;
+		this.dimensions = dimensions;
+		this.count = count;
+		this.entryBytes = 4 + 4 * dimensions;
+		this.entriesPerSegment = (int) Math.max(1, MAX_SEGMENT_BYTES / entryBytes);
+		this.scratch = ThreadLocal.withInitial(() -> new float[dimensions]);
+
+		int segmentCount = (count + entriesPerSegment - 1) / entriesPerSegment;
+		segments = new MappedByteBuffer[segmentCount];
+		for (int s = 0; s < segmentCount; s++) {
+			long start = HEADER_BYTES + (long) s * entriesPerSegment * entryBytes;
+			int entries = Math.min(entriesPerSegment, count - s * entriesPerSegment);
+			segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, (long) entries * entryBytes);
+			segments[s].order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	public static Writer create(Path file, int dimensions) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		writeHeader(channel, dimensions, 0);
+		channel.position(HEADER_BYTES);
+		return new Writer(channel, dimensions, 0);
+	}
+
+	/**
+	 * Opens an existing gallery for adding entries after the ones it holds.
+	 * Galleries opened for searching keep seeing the old entries until they
+	 * are opened again.
+	 */
+	public static Writer append(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = readHeader(channel, file);
+			int dimensions = header.getInt();
+			int count = header.getInt();
+			channel.position(HEADER_BYTES + (long) count * (4 + 4 * dimensions));
+			return new Writer(channel, dimensions, count);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public static LbphGallery open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = readHeader(channel, file);
+			int dimensions = header.getInt();
+			int count = header.getInt();
+			return new LbphGallery(channel, dimensions, count);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the header, positioned after the magic number
+	 */
+	private static ByteBuffer readHeader(FileChannel channel, Path file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		int read = channel.read(header, 0);
+		header.flip();
+		if (read < HEADER_BYTES || header.getInt() != MAGIC) {
+			throw new IOException(file + " is not an LBPH gallery.");
+		}
+		return header;
+	}
+
+	private static void writeHeader(FileChannel channel, int dimensions, int count) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(dimensions).putInt(count).putInt(0);
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int dimensions() {
+		return dimensions;
+	}
+
+	/**
+	 * @return the k entries closest to the query, closest first
+	 */
+	public List<Neighbour> search(float[] query, int k) {
+		return search(query, k, label -> true);
+	}
+
+	/**
+	 * @return the k entries closest to the query among those whose label is
+	 *         accepted by the filter, closest first
+	 */
+	public List<Neighbour> search(float[] query, int k, IntPredicate labelFilter) {
+		int chunks = (count + CHUNK_ENTRIES - 1) / CHUNK_ENTRIES;
+		List<Neighbour> merged = IntStream.range(0, chunks).parallel()
+				.mapToObj(chunk -> searchChunk(query, chunk, k, labelFilter))
+				.flatMap(List::stream)
+				.collect(Collectors.toList());
+		Collections.sort(merged);
+		return merged.size() > k ? new ArrayList<>(merged.subList(0, k)) : merged;
+	}
+
+	private List<Neighbour> searchChunk(float[] query, int chunk, int k, IntPredicate labelFilter) {
+		float[] entry = scratch.get();
+		// farthest of the current k best on top
+		PriorityQueue<Neighbour> best = new PriorityQueue<>(k + 1, Collections.reverseOrder());
+
+		int from = chunk * CHUNK_ENTRIES;
+		int to = Math.min(count, from + CHUNK_ENTRIES);
+		ByteBuffer segment = null;
+		FloatBuffer floats = null;
+		int segmentIndex = -1;
+		for (int e = from; e < to; e++) {
+			if (e / entriesPerSegment != segmentIndex) {
+				segmentIndex = e / entriesPerSegment;
+				// views of our own, the mapped buffer's position is shared
+				segment = segments[segmentIndex].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+				floats = segment.asFloatBuffer();
+			}
+			int offset = (e % entriesPerSegment) * entryBytes;
+			int label = segment.getInt(offset);
+			if (!labelFilter.test(label)) {
+				continue;
+			}
+			floats.position((offset + 4) / 4);
+			floats.get(entry, 0, dimensions);
+
+			float distance = LbphHistogram.chiSquare(query, entry, dimensions);
+			if (best.size() < k || distance < best.peek().getDistance()) {
+				best.add(new Neighbour(label, distance));
+				if (best.size() > k) {
+					best.poll();
+				}
+			}
+		}
+		return new ArrayList<>(best);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
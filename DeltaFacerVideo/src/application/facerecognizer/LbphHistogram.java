@@ -0,0 +1,147 @@
+package application.facerecognizer;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * Local binary pattern histograms computed in Java, the same way OpenCV's
+ * LBPH recognizer does: a circular LBP image whose cells on a grid are turned
+ * into normalized histograms and concatenated.
+ */
+public class LbphHistogram {
+
+	private static final float EPSILON = 1.1920929e-07f;
+
+	private final int radius;
+	private final int neighbors;
+	private final int gridX;
+	private final int gridY;
+
+	public LbphHistogram(int radius, int neighbors, int gridX, int gridY) {
+		this.radius = radius;
+		this.neighbors = neighbors;
+		this.gridX = gridX;
+		this.gridY = gridY;
+	}
+
+	public int getRadius() {
+		return radius;
+	}
+
+	public int getNeighbors() {
+		return neighbors;
+	}
+
+	public int getGridX() {
+		return gridX;
+	}
+
+	public int getGridY() {
+		return gridY;
+	}
+
+	/**
+	 * @return length of the histogram of one image
+	 */
+	public int dimensions() {
+		return gridX * gridY * (1 << neighbors);
+	}
+
+	/**
+	 * @param image
+	 *            8 bit single channel image
+	 */
+	public float[] compute(Mat image) {
+		Mat continuous = image.isContinuous() ? image : image.clone();
+		int rows = continuous.rows();
+		int cols = continuous.cols();
+		byte[] pixels = new byte[rows * cols];
+		continuous.data().get(pixels);
+		if (continuous != image) {
+			continuous.release();
+		}
+		return compute(pixels, rows, cols);
+	}
+
+	float[] compute(byte[] pixels, int rows, int cols) {
+		int lbpRows = rows - 2 * radius;
+		int lbpCols = cols - 2 * radius;
+		int[] lbp = new int[Math.max(0, lbpRows * lbpCols)];
+
+		for (int n = 0; n < neighbors; n++) {
+			// sample point on the circle, bilinearly interpolated
+			double x = radius * Math.cos(2.0 * Math.PI * n / neighbors);
+			double y = -radius * Math.sin(2.0 * Math.PI * n / neighbors);
+			int fx = (int) Math.floor(x);
+			int fy = (int) Math.floor(y);
+			int cx = (int) Math.ceil(x);
+			int cy = (int) Math.ceil(y);
+			float ty = (float) (y - fy);
+			float tx = (float) (x - fx);
+			float w1 = (1 - tx) * (1 - ty);
+			float w2 = tx * (1 - ty);
+			float w3 = (1 - tx) * ty;
+			float w4 = tx * ty;
+
+			for (int i = radius; i < rows - radius; i++) {
+				for (int j = radius; j < cols - radius; j++) {
+					float t = w1 * (pixels[(i + fy) * cols + j + fx] & 0xff)
+							+ w2 * (pixels[(i + fy) * cols + j + cx] & 0xff)
+							+ w3 * (pixels[(i + cy) * cols + j + fx] & 0xff)
+							+ w4 * (pixels[(i + cy) * cols + j + cx] & 0xff);
+					int centre = pixels[i * cols + j] & 0xff;
+					if (t > centre || Math.abs(t - centre) < EPSILON) {
+						lbp[(i - radius) * lbpCols + j - radius] += 1 << n;
+					}
+				}
+			}
+		}
+
+		int bins = 1 << neighbors;
+		int cellWidth = lbpCols / gridX;
+		int cellHeight = lbpRows / gridY;
+		float[] histogram = new float[dimensions()];
+		if (cellWidth == 0 || cellHeight == 0) {
+			return histogram;
+		}
+
+		float weight = 1.0f / (cellWidth * cellHeight);
+		for (int gy = 0; gy < gridY; gy++) {
+			for (int gx = 0; gx < gridX; gx++) {
+				int offset = (gy * gridX + gx) * bins;
+				for (int i = gy * cellHeight; i < (gy + 1) * cellHeight; i++) {
+					for (int j = gx * cellWidth; j < (gx + 1) * cellWidth; j++) {
+						histogram[offset + lbp[i * lbpCols + j]] += weight;
+					}
+				}
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Chi-square distance as used by OpenCV's LBPH recognizer
+	 * (HISTCMP_CHISQR_ALT). Empty bins are kept from dividing by zero with a
+	 * tiny epsilon rather than a branch, and the sum is split over four
+	 * independent accumulators so the loop is not bound by the latency of a
+	 * single floating point add chain.
+	 */
+	public static float chiSquare(float[] a, float[] b, int length) {
+		float sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+		int i = 0;
+		for (; i + 3 < length; i += 4) {
+			float d0 = a[i] - b[i];
+			float d1 = a[i + 1] - b[i + 1];
+			float d2 = a[i + 2] - b[i + 2];
+			float d3 = a[i + 3] - b[i + 3];
+			sum0 += d0 * d0 / (a[i] + b[i] + EPSILON);
+			sum1 += d1 * d1 / (a[i + 1] + b[i + 1] + EPSILON);
+			sum2 += d2 * d2 / (a[i + 2] + b[i + 2] + EPSILON);
+			sum3 += d3 * d3 / (a[i + 3] + b[i + 3] + EPSILON);
+		}
+		for (; i < length; i++) {
+			float d = a[i] - b[i];
+			sum0 += d * d / (a[i] + b[i] + EPSILON);
+		}
+		return 2 * (sum0 + sum1 + sum2 + sum3);
+	}
+}
@@ -0,0 +1,162 @@
+package application.facerecognizer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A trained recognizer saved as a single file: the recognizer type, the size
+ * of the training images, the model parameters and the class labels, followed
+ * by the serialized OpenCV model. Everything after the magic number is
+ * gzipped, so the file stays small and loading it only depends on the size of
+ * the model, not on the size of the data set it was trained on.
+ *
+ * Version 2 adds the labels that were removed since training and the
+ * projections of faces enrolled into a PCA / LDA model afterwards.
+ */
+class ModelBundle {
+
+	// "DFMB"
+	private static final int MAGIC = 0x44464d42;
+	private static final int VERSION = 2;
+
+	RecognizerType type;
+	int imageWidth;
+	int imageHeight;
+	Map<String, Double> parameters = new LinkedHashMap<>();
+	List<String> classLabels = new ArrayList<>();
+	String model;
+	List<Integer> removedLabels = new ArrayList<>();
+	List<Integer> enrolledLabels = new ArrayList<>();
+	List<float[]> enrolledVectors = new ArrayList<>();
+
+	/**
+	 * @return true if the file starts like a bundle, false for anything else
+	 *         (e.g. a plain OpenCV model file)
+	 */
+	static boolean isBundle(String file) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	void write(String file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.flush();
+
+			DataOutputStream data = new DataOutputStream(new GZIPOutputStream(out));
+			data.writeInt(VERSION);
+			data.writeUTF(type.getName());
+			data.writeInt(imageWidth);
+			data.writeInt(imageHeight);
+
+			data.writeInt(parameters.size());
+			for (Map.Entry<String, Double> parameter : parameters.entrySet()) {
+				data.writeUTF(parameter.getKey());
+				data.writeDouble(parameter.getValue());
+			}
+
+			data.writeInt(classLabels.size());
+			for (String label : classLabels) {
+				data.writeUTF(label);
+			}
+
+			// writeUTF is limited to 64k, the model is much bigger
+			byte[] modelBytes = model.getBytes(StandardCharsets.UTF_8);
+			data.writeInt(modelBytes.length);
+			data.write(modelBytes);
+
+			data.writeInt(removedLabels.size());
+			for (int label : removedLabels) {
+				data.writeInt(label);
+			}
+
+			data.writeInt(enrolledVectors.size());
+			for (int i = 0; i < enrolledVectors.size(); i++) {
+				float[] vector = enrolledVectors.get(i);
+				data.writeInt(enrolledLabels.get(i));
+				data.writeInt(vector.length);
+				for (float value : vector) {
+					data.writeFloat(value);
+				}
+			}
+			data.close();
+		}
+	}
+
+	static ModelBundle read(String file) throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			DataInputStream header = new DataInputStream(in);
+			if (header.readInt() != MAGIC) {
+				throw new IOException(file + " is not a model bundle.");
+			}
+
+			DataInputStream data = new DataInputStream(new GZIPInputStream(in));
+			int version = data.readInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Unsupported model bundle version " + version + " in " + file);
+			}
+
+			ModelBundle bundle = new ModelBundle();
+			String typeName = data.readUTF();
+			for (RecognizerType type : RecognizerType.values()) {
+				if (type.getName().equals(typeName)) {
+					bundle.type = type;
+				}
+			}
+			if (bundle.type == null) {
+				throw new IOException("Unknown recognizer type " + typeName + " in " + file);
+			}
+			bundle.imageWidth = data.readInt();
+			bundle.imageHeight = data.readInt();
+
+			int parameterCount = data.readInt();
+			for (int i = 0; i < parameterCount; i++) {
+				bundle.parameters.put(data.readUTF(), data.readDouble());
+			}
+
+			int labelCount = data.readInt();
+			for (int i = 0; i < labelCount; i++) {
+				bundle.classLabels.add(data.readUTF());
+			}
+
+			byte[] modelBytes = new byte[data.readInt()];
+			data.readFully(modelBytes);
+			bundle.model = new String(modelBytes, StandardCharsets.UTF_8);
+			if (version < 2) {
+				return bundle;
+			}
+
+			int removedCount = data.readInt();
+			for (int i = 0; i < removedCount; i++) {
+				bundle.removedLabels.add(data.readInt());
+			}
+
+			int enrolledCount = data.readInt();
+			for (int i = 0; i < enrolledCount; i++) {
+				bundle.enrolledLabels.add(data.readInt());
+				float[] vector = new float[data.readInt()];
+				for (int j = 0; j < vector.length; j++) {
+					vector[j] = data.readFloat();
+				}
+				bundle.enrolledVectors.add(vector);
+			}
+			return bundle;
+		}
+	}
+}
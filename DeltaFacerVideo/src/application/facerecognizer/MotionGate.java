@@ -0,0 +1,366 @@
+package application.facerecognizer;
+
+import static org.bytedeco.javacpp.opencv_core.CV_32F;
+import static org.bytedeco.javacpp.opencv_core.CV_8U;
+import static org.bytedeco.javacpp.opencv_core.FILLED;
+import static org.bytedeco.javacpp.opencv_core.absdiff;
+import static org.bytedeco.javacpp.opencv_core.bitwise_and;
+import static org.bytedeco.javacpp.opencv_imgproc.CHAIN_APPROX_SIMPLE;
+import static org.bytedeco.javacpp.opencv_imgproc.GaussianBlur;
+import static org.bytedeco.javacpp.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.javacpp.opencv_imgproc.RETR_EXTERNAL;
+import static org.bytedeco.javacpp.opencv_imgproc.THRESH_BINARY;
+import static org.bytedeco.javacpp.opencv_imgproc.accumulateWeighted;
+import static org.bytedeco.javacpp.opencv_imgproc.boundingRect;
+import static org.bytedeco.javacpp.opencv_imgproc.dilate;
+import static org.bytedeco.javacpp.opencv_imgproc.findContours;
+import static org.bytedeco.javacpp.opencv_imgproc.rectangle;
+import static org.bytedeco.javacpp.opencv_imgproc.resize;
+import static org.bytedeco.javacpp.opencv_imgproc.threshold;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_core.Point;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacpp.opencv_core.RectVector;
+import org.bytedeco.javacpp.opencv_core.Scalar;
+import org.bytedeco.javacpp.opencv_core.Size;
+
+import application.metrics.Metrics;
+
+/**
+ * Runs the face cascade only where the picture changes, for cameras that
+ * don't move. Every frame is compared, at a width of {@value #WIDTH} pixels,
+ * with a slowly updated average of the previous ones; the regions that
+ * differ, padded and merged, are scanned for faces together with the fixed
+ * regions of interest, and the faces of the last detection elsewhere are
+ * kept. A frame without any change keeps the faces of the last detection
+ * without scanning at all. Someone who stands still becomes part of the
+ * background and keeps the face found while they moved; a full detection
+ * every few frames picks up anything the regions missed.
+ *
+ * Changes in the ignored regions, e.g. a screen or trees in the wind, are
+ * left out. Regions are in pixels of the frame.
+ *
+ * A gate keeps state between frames, so it must see the frames of one
+ * stream in order and from one thread at a time. Frames in which the faces
+ * are tracked rather than detected go to {@link #observe(Mat)}, so that the
+ * background and the frame count follow every frame.
+ */
+public class MotionGate {
+
+	private static final int WIDTH = 160;
+	// weight of the current frame in the background
+	private static final double BACKGROUND_RATE = 0.05;
+	// regions are padded by this part of their size, so that a moving body
+	// brings its head into the scan
+	private static final double PADDING = 0.5;
+	private static final long REPORT_INTERVAL_NANOS = 5_000_000_000L;
+
+	private final double threshold;
+	private final double minArea;
+	private final int fullDetectionInterval;
+	private final List<Rect> regionsOfInterest;
+	private final List<Rect> ignoredRegions;
+
+	private final Size smallSize = new Size();
+	private final Size blurSize = new Size(5, 5);
+	private final Mat small = new Mat();
+	private final Mat background = new Mat();
+	private final Mat background8u = new Mat();
+	private final Mat difference = new Mat();
+	private final Mat ignoreMask = new Mat();
+	private final Mat kernel = new Mat();
+	private final Point anchor = new Point(-1, -1);
+	private final MatVector contours = new MatVector();
+	private final List<Rect> faces = new ArrayList<>();
+	private int framesSinceFull = Integer.MAX_VALUE;
+
+	private final LongAdder staticFrames = Metrics.counter("motion.static");
+	private final LongAdder partialFrames = Metrics.counter("motion.partial");
+	private final LongAdder fullFrames = Metrics.counter("motion.full");
+	// for the report, since the last one
+	private long frames = 0;
+	private long tracked = 0;
+	private long skipped = 0;
+	private double scannedFraction = 0;
+	private long fullNanos = 0;
+	private long fullCount = 0;
+	private long partialNanos = 0;
+	private long partialCount = 0;
+	private long reportStart = System.nanoTime();
+
+	/**
+	 * @param threshold
+	 *            difference in gray levels, 0..255, above which a pixel changed
+	 * @param minArea
+	 *            smallest change that counts, as a fraction of the frame
+	 * @param fullDetectionInterval
+	 *            scan the whole frame on the first detection after this many
+	 *            frames
+	 * @param regionsOfInterest
+	 *            always scanned
+	 * @param ignoredRegions
+	 *            never looked at for changes
+	 */
+	public MotionGate(double threshold, double minArea, int fullDetectionInterval, List<Rect> regionsOfInterest,
+			List<Rect> ignoredRegions) {
+		this.threshold = threshold;
+		this.minArea = minArea;
+		this.fullDetectionInterval = Math.max(1, fullDetectionInterval);
+		this.regionsOfInterest = regionsOfInterest;
+		this.ignoredRegions = ignoredRegions;
+	}
+
+	/**
+	 * Finds the faces in the frame, scanning only what changed.
+	 */
+	public void detect(Mat image, RectVector faceRects, FacePreprocessor detector) {
+		long start = System.nanoTime();
+		List<Rect> changed = changedRegions(image);
+		frames++;
+
+		if (framesSinceFull >= fullDetectionInterval - 1) {
+			detector.detectFaces(image, faceRects);
+			remember(faceRects);
+			framesSinceFull = 0;
+			fullFrames.increment();
+			scannedFraction += 1;
+			fullNanos += System.nanoTime() - start;
+			fullCount++;
+		} else if (changed.isEmpty() && regionsOfInterest.isEmpty()) {
+			put(faces, faceRects);
+			framesSinceFull++;
+			staticFrames.increment();
+			skipped++;
+		} else {
+			List<Rect> scan = merge(changed, image);
+			List<Rect> found = new ArrayList<>();
+			try {
+				double area = 0;
+				for (Rect region : scan) {
+					detector.detectFaces(image, region, found);
+					area += (double) region.width() * region.height();
+				}
+				// faces outside the scanned regions are where they were
+				for (Rect face : faces) {
+					if (!intersectsAny(face, scan)) {
+						FacePreprocessor.addUnlessDuplicate(found, new Rect(face));
+					}
+				}
+				put(found, faceRects);
+				remember(faceRects);
+				scannedFraction += Math.min(1.0, area / ((double) image.cols() * image.rows()));
+			} finally {
+				close(found);
+				close(scan);
+			}
+			framesSinceFull++;
+			partialFrames.increment();
+			partialNanos += System.nanoTime() - start;
+			partialCount++;
+		}
+		close(changed);
+		report();
+	}
+
+	/**
+	 * Updates the background with a frame that the faces are tracked in, and
+	 * counts it towards the next full detection.
+	 */
+	public void observe(Mat image) {
+		close(changedRegions(image));
+		frames++;
+		tracked++;
+		if (framesSinceFull < Integer.MAX_VALUE) {
+			framesSinceFull++;
+		}
+		report();
+	}
+
+	/**
+	 * Compares the frame with the background and updates it.
+	 *
+	 * @return the changed regions, in frame pixels
+	 */
+	private List<Rect> changedRegions(Mat image) {
+		int height = Math.max(1, (int) Math.round((double) image.rows() * WIDTH / image.cols()));
+		smallSize.width(WIDTH).height(height);
+		resize(image, small, smallSize, 0, 0, INTER_AREA);
+		GaussianBlur(small, small, blurSize, 0);
+
+		List<Rect> regions = new ArrayList<>();
+		if (background.empty() || background.rows() != small.rows()) {
+			small.convertTo(background, CV_32F);
+			buildIgnoreMask(image);
+			// nothing to compare with yet; the first frame gets a full detection
+			return regions;
+		}
+		background.convertTo(background8u, CV_8U);
+		absdiff(small, background8u, difference);
+		accumulateWeighted(small, background, BACKGROUND_RATE);
+		threshold(difference, difference, threshold, 255, THRESH_BINARY);
+		if (!ignoreMask.empty()) {
+			bitwise_and(difference, ignoreMask, difference);
+		}
+		dilate(difference, difference, kernel, anchor, 2, 0, new Scalar(0.0));
+		findContours(difference, contours, RETR_EXTERNAL, CHAIN_APPROX_SIMPLE);
+
+		double scale = (double) image.cols() / small.cols();
+		double minPixels = minArea * small.cols() * small.rows();
+		for (int i = 0; i < contours.size(); i++) {
+			try (Rect box = boundingRect(contours.get(i))) {
+				if ((double) box.width() * box.height() < minPixels) {
+					continue;
+				}
+				int padX = (int) (box.width() * PADDING);
+				int padY = (int) (box.height() * PADDING);
+				regions.add(clip(new Rect((int) ((box.x() - padX) * scale), (int) ((box.y() - padY) * scale),
+						(int) Math.ceil((box.width() + 2 * padX) * scale),
+						(int) Math.ceil((box.height() + 2 * padY) * scale)), image));
+			}
+		}
+		return regions;
+	}
+
+	private void buildIgnoreMask(Mat image) {
+		if (ignoredRegions.isEmpty()) {
+			return;
+		}
+		double scale = (double) small.cols() / image.cols();
+		ignoreMask.create(small.rows(), small.cols(), CV_8U);
+		ignoreMask.put(new Scalar(255.0));
+		for (Rect region : ignoredRegions) {
+			try (Point from = new Point((int) (region.x() * scale), (int) (region.y() * scale));
+					Point to = new Point((int) Math.ceil((region.x() + region.width()) * scale),
+							(int) Math.ceil((region.y() + region.height()) * scale))) {
+				rectangle(ignoreMask, from, to, new Scalar(0.0), FILLED, 8, 0);
+			}
+		}
+	}
+
+	/**
+	 * @return the changed regions and the regions of interest, grown to cover
+	 *         the known faces they touch and merged where they overlap
+	 */
+	private List<Rect> merge(List<Rect> changed, Mat image) {
+		List<Rect> regions = new ArrayList<>();
+		for (Rect region : changed) {
+			regions.add(new Rect(region));
+		}
+		for (Rect region : regionsOfInterest) {
+			regions.add(clip(new Rect(region), image));
+		}
+		// a face cut in half by a region would not be found again
+		for (Rect region : regions) {
+			for (Rect face : faces) {
+				if (intersects(region, face)) {
+					union(region, face);
+				}
+			}
+		}
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (int i = 0; i < regions.size() && !merged; i++) {
+				for (int j = i + 1; j < regions.size() && !merged; j++) {
+					if (intersects(regions.get(i), regions.get(j))) {
+						union(regions.get(i), regions.get(j));
+						regions.remove(j).close();
+						merged = true;
+					}
+				}
+			}
+		}
+		return regions;
+	}
+
+	private static Rect clip(Rect rect, Mat image) {
+		int x = Math.max(0, rect.x());
+		int y = Math.max(0, rect.y());
+		int right = Math.min(image.cols(), rect.x() + rect.width());
+		int bottom = Math.min(image.rows(), rect.y() + rect.height());
+		return rect.x(x).y(y).width(Math.max(0, right - x)).height(Math.max(0, bottom - y));
+	}
+
+	private static boolean intersects(Rect a, Rect b) {
+		return a.x() < b.x() + b.width() && b.x() < a.x() + a.width() && a.y() < b.y() + b.height()
+				&& b.y() < a.y() + a.height();
+	}
+
+	private static boolean intersectsAny(Rect rect, List<Rect> regions) {
+		for (Rect region : regions) {
+			if (intersects(rect, region)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Grows a to cover b as well.
+	 */
+	private static void union(Rect a, Rect b) {
+		int x = Math.min(a.x(), b.x());
+		int y = Math.min(a.y(), b.y());
+		int right = Math.max(a.x() + a.width(), b.x() + b.width());
+		int bottom = Math.max(a.y() + a.height(), b.y() + b.height());
+		a.x(x).y(y).width(right - x).height(bottom - y);
+	}
+
+	private void remember(RectVector faceRects) {
+		close(faces);
+		for (int i = 0; i < faceRects.size(); i++) {
+			try (Rect rect = faceRects.get(i)) {
+				faces.add(new Rect(rect));
+			}
+		}
+	}
+
+	private static void put(List<Rect> rects, RectVector faceRects) {
+		faceRects.resize(rects.size());
+		for (int i = 0; i < rects.size(); i++) {
+			faceRects.put(i, rects.get(i));
+		}
+	}
+
+	private static void close(List<Rect> rects) {
+		for (Rect rect : rects) {
+			rect.close();
+		}
+		rects.clear();
+	}
+
+	private void report() {
+		long elapsed = System.nanoTime() - reportStart;
+		if (elapsed < REPORT_INTERVAL_NANOS || frames == 0) {
+			return;
+		}
+		// what a full detection would have cost on every detection that didn't
+		// get one; the tracked frames are the tracker's saving, not the gate's
+		long detections = frames - tracked;
+		double fullMillis = fullCount == 0 ? 0 : fullNanos / 1e6 / fullCount;
+		double partialMillis = partialCount == 0 ? 0 : partialNanos / 1e6 / partialCount;
+		double savedMillis = (detections - fullCount) * fullMillis - partialCount * partialMillis;
+		System.out.println(String.format(
+				"Motion gate: %.1f%% of frames skipped as static, %.1f%% tracked, %.1f%% of pixels scanned per "
+						+ "detection, %.1f ms per full detection, %.1f ms per partial one, about %.0f ms of "
+						+ "detection saved",
+				100.0 * skipped / frames, 100.0 * tracked / frames,
+				detections == 0 ? 0.0 : 100.0 * scannedFraction / detections, fullMillis, partialMillis,
+				Math.max(0, savedMillis)));
+		frames = 0;
+		tracked = 0;
+		skipped = 0;
+		scannedFraction = 0;
+		fullNanos = 0;
+		fullCount = 0;
+		partialNanos = 0;
+		partialCount = 0;
+		reportStart = System.nanoTime();
+	}
+}
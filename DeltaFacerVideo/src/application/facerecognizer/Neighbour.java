@@ -0,0 +1,33 @@
+package application.facerecognizer;
+
+/**
+ * A gallery entry returned by a nearest neighbour search.
+ */
+public class Neighbour implements Comparable<Neighbour> {
+
+	private final int labelIndex;
+	private final double distance;
+
+	public Neighbour(int labelIndex, double distance) {
+		this.labelIndex = labelIndex;
+		this.distance = distance;
+	}
+
+	public int getLabelIndex() {
+		return labelIndex;
+	}
+
+	public double getDistance() {
+		return distance;
+	}
+
+	@Override
+	public int compareTo(Neighbour other) {
+		return Double.compare(distance, other.distance);
+	}
+
+	@Override
+	public String toString() {
+		return labelIndex + " (" + distance + ")";
+	}
+}
@@ -0,0 +1,35 @@
+package application.facerecognizer;
+
+/**
+ * The class a recognizer assigned to a face, with the distance it reported.
+ * Lower confidence values mean a closer match.
+ */
+public class Prediction {
+
+	private final int labelIndex;
+	private final String label;
+	private final double confidence;
+
+	public Prediction(int labelIndex, String label, double confidence) {
+		this.labelIndex = labelIndex;
+		this.label = label;
+		this.confidence = confidence;
+	}
+
+	public int getLabelIndex() {
+		return labelIndex;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public double getConfidence() {
+		return confidence;
+	}
+
+	@Override
+	public String toString() {
+		return label + " (" + confidence + ")";
+	}
+}
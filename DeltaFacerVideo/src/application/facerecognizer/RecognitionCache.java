@@ -0,0 +1,118 @@
+package application.facerecognizer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the last prediction for every face track, so a face that stays
+ * in view is not classified again on every frame. A track is classified again
+ * once its prediction is older than the frame or time budget, or when the
+ * tracker is no longer sure it is still following the same face.
+ *
+ * The cache holds at most a fixed number of tracks; the least recently used
+ * ones are dropped first. All methods are thread safe. With more than one
+ * recognize worker, frames are classified out of order, so a track may be
+ * refilled with the prediction of an older frame than the one it holds; the
+ * track is then just classified again a little sooner.
+ */
+public class RecognitionCache {
+
+	private static class CachedPrediction {
+		final Prediction prediction;
+		final long frame;
+		final long timeNanos;
+
+		CachedPrediction(Prediction prediction, long frame, long timeNanos) {
+			this.prediction = prediction;
+			this.frame = frame;
+			this.timeNanos = timeNanos;
+		}
+	}
+
+	private final int maxFrames;
+	private final long maxAgeNanos;
+	private final double minTrackConfidence;
+	private final Map<Integer, CachedPrediction> entries;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param maxTracks
+	 *            most tracks to keep at once
+	 * @param maxFrames
+	 *            classify a track again after this many frames
+	 * @param maxAgeMillis
+	 *            classify a track again after this much time
+	 * @param minTrackConfidence
+	 *            classify a track again if the tracker confidence drops below
+	 *            this value
+	 */
+	public RecognitionCache(int maxTracks, int maxFrames, long maxAgeMillis, double minTrackConfidence) {
+		this.maxFrames = maxFrames;
+		this.maxAgeNanos = maxAgeMillis * 1_000_000L;
+		this.minTrackConfidence = minTrackConfidence;
+		this.entries = new LinkedHashMap<Integer, CachedPrediction>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, CachedPrediction> eldest) {
+				if (size() > maxTracks) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached prediction for the track, or null if the track needs
+	 *         to be classified
+	 */
+	public synchronized Prediction get(int trackId, long frame, double trackConfidence) {
+		CachedPrediction cached = entries.get(trackId);
+		if (cached == null || trackConfidence < minTrackConfidence || frame - cached.frame >= maxFrames
+				|| System.nanoTime() - cached.timeNanos >= maxAgeNanos) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return cached.prediction;
+	}
+
+	public synchronized void put(int trackId, long frame, Prediction prediction) {
+		entries.put(trackId, new CachedPrediction(prediction, frame, System.nanoTime()));
+	}
+
+	/**
+	 * Forgets the tracks of faces that left the scene.
+	 */
+	public synchronized void evict(int[] trackIds) {
+		for (int trackId : trackIds) {
+			if (entries.remove(trackId) != null) {
+				evictions++;
+			}
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long lookups = hits + misses;
+		return String.format("Recognition cache: %d hits, %d misses (%.1f%% hit rate), %d tracks, %d evicted", hits,
+				misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, entries.size(), evictions);
+	}
+}
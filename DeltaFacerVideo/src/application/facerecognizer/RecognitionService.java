@@ -0,0 +1,149 @@
+package application.facerecognizer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_face;
+
+/**
+ * Serves predictions of one recognizer to any number of threads. Recognizers
+ * that are thread safe by themselves (the MBPH gallery, the ANN index) are
+ * shared as they are. The native OpenCV models are not: the service keeps a
+ * pool of copies of the model, and every prediction borrows one, so no copy
+ * is ever used by two threads at once. The pool grows to the number of
+ * threads predicting at the same time.
+ *
+ * A retrained recognizer is swapped in with {@link #swap(DeltaFacer)}. The
+ * copies for it are made before it is published, so predictions carry on
+ * with the old model until the swap and with the new one right after,
+ * without waiting. Copies of the old model are closed as they are returned.
+ * Faces enrolled into a BPH recognizer change its native model; the copies
+ * are renewed on the first prediction after that.
+ */
+public class RecognitionService implements AutoCloseable {
+
+	private static class Generation {
+		final DeltaFacer recognizer;
+		final int version;
+		final Queue<opencv_face.FaceRecognizer> idle = new ConcurrentLinkedQueue<>();
+		volatile boolean retired = false;
+
+		Generation(DeltaFacer recognizer) {
+			this.recognizer = recognizer;
+			this.version = recognizer.getModelVersion();
+		}
+	}
+
+	private final AtomicReference<Generation> current = new AtomicReference<>();
+	private final int warmCopies;
+
+	/**
+	 * @param warmCopies
+	 *            copies of a native model made before it is swapped in,
+	 *            usually the number of threads that predict
+	 */
+	public RecognitionService(DeltaFacer recognizer, int warmCopies) {
+		this.warmCopies = Math.max(0, warmCopies);
+		current.set(prepare(recognizer));
+	}
+
+	/**
+	 * @return the recognizer predictions are made with
+	 */
+	public DeltaFacer getRecognizer() {
+		return current.get().recognizer;
+	}
+
+	/**
+	 * Predicts the face; may be called from any thread.
+	 */
+	public Prediction predict(Mat face) {
+		Generation generation = current.get();
+		DeltaFacer recognizer = generation.recognizer;
+		if (recognizer.isThreadSafe()) {
+			return recognizer.predict(face);
+		}
+		if (generation.version != recognizer.getModelVersion()) {
+			generation = renew(generation);
+		}
+
+		opencv_face.FaceRecognizer model = generation.idle.poll();
+		if (model == null) {
+			model = recognizer.copyModel();
+		}
+		try {
+			return recognizer.predict(model, face);
+		} finally {
+			generation.idle.offer(model);
+			if (generation.retired) {
+				closeIdle(generation);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the recognizer. Returns once the new one is in use; predictions
+	 * running at that moment finish with the old one.
+	 *
+	 * @return the recognizer that was replaced
+	 */
+	public DeltaFacer swap(DeltaFacer recognizer) {
+		if (!recognizer.IsTrained()) {
+			throw new IllegalStateException("Recognizer untrained; train it before swapping it in.");
+		}
+		long start = System.nanoTime();
+		Generation next = prepare(recognizer);
+		Generation previous = current.getAndSet(next);
+		retire(previous);
+		System.out.println(String.format("Swapped in the %s recognizer, prepared in %.1f ms",
+				recognizer.getRecognizerType().getName(), (System.nanoTime() - start) / 1e6));
+		return previous.recognizer;
+	}
+
+	private Generation prepare(DeltaFacer recognizer) {
+		Generation generation = new Generation(recognizer);
+		if (!recognizer.isThreadSafe()) {
+			for (int i = 0; i < warmCopies; i++) {
+				generation.idle.add(recognizer.copyModel());
+			}
+		}
+		return generation;
+	}
+
+	/**
+	 * Replaces copies that are older than the model; only one of the threads
+	 * that notice does it.
+	 */
+	private Generation renew(Generation stale) {
+		Generation fresh = prepare(stale.recognizer);
+		if (current.compareAndSet(stale, fresh)) {
+			retire(stale);
+			return fresh;
+		}
+		closeIdle(fresh);
+		return current.get();
+	}
+
+	private static void retire(Generation generation) {
+		generation.retired = true;
+		closeIdle(generation);
+	}
+
+	private static void closeIdle(Generation generation) {
+		opencv_face.FaceRecognizer model;
+		while ((model = generation.idle.poll()) != null) {
+			model.close();
+		}
+	}
+
+	/**
+	 * Closes the copies of the model; predictions still running close theirs
+	 * when they finish.
+	 */
+	@Override
+	public void close() {
+		retire(current.get());
+	}
+}
@@ -3,7 +3,8 @@ package application.facerecognizer;
 public enum RecognizerType {
 	PCA("PCA"), //principle component analysis (eigen recognizer)
 	LDA("LDA"), //linear discriminant analysis (fisher recognizer),
-	BPH("BPH");  //Binary Pattern Histogram
+	BPH("BPH"),  //Binary Pattern Histogram
+	MBPH("MBPH"); //Binary Pattern Histogram, memory mapped gallery searched in Java
 
 	private String name;
 	
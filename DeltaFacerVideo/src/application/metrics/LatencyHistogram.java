@@ -0,0 +1,117 @@
+package application.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets, in the
+ * manner of HdrHistogram: every power of two is split into 32 buckets, so a
+ * percentile is off by at most about 3%. Recording is a few atomic adds and
+ * never allocates, so it can stay on in production. Values above about 36
+ * minutes go into the last bucket.
+ *
+ * Recording and reading may happen at the same time; a reading taken while
+ * values are recorded may be slightly inconsistent.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_BITS = 40;
+	private static final int BUCKETS = SUB_BUCKETS * (MAX_BITS - SUB_BUCKET_BITS + 2);
+	private static final long MAX_VALUE = (1L << (MAX_BITS + 1)) - 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public void record(long nanos) {
+		long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+		counts.incrementAndGet(bucket(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Records the time since the given System.nanoTime().
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	private static int bucket(long value) {
+		int msb = 63 - Long.numberOfLeadingZeros(value | 1);
+		if (msb < SUB_BUCKET_BITS) {
+			return (int) value;
+		}
+		int shift = msb - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return the middle of the values that fall into the bucket
+	 */
+	private static long bucketValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		long lowest = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+		return lowest + ((1L << shift) >> 1);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getMeanNanos() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 */
+	public long getPercentileNanos(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(bucketValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%8d  mean %7.2f  p50 %7.2f  p90 %7.2f  p99 %7.2f  max %7.2f ms", getCount(),
+				getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6, getPercentileNanos(90) / 1e6,
+				getPercentileNanos(99) / 1e6, getMaxNanos() / 1e6);
+	}
+}
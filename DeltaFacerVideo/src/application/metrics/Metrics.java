@@ -0,0 +1,150 @@
+package application.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.bytedeco.javacpp.Pointer;
+
+/**
+ * Process wide registry of counters, gauges and latency histograms. Metrics
+ * are created on first use and live as long as the process; callers keep
+ * the instance they get so the hot path doesn't look it up per frame.
+ *
+ * Names are dotted, e.g. stage.detect or queue.recognize. Latencies are
+ * recorded in nanoseconds and reported in milliseconds.
+ */
+public final class Metrics {
+
+	private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+	static {
+		gauges.put("native.physical_bytes", Pointer::physicalBytes);
+		gauges.put("native.javacpp_bytes", Pointer::totalBytes);
+		gauges.put("heap.used_bytes",
+				() -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+	}
+
+	private Metrics() {
+	}
+
+	public static LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, key -> new LongAdder());
+	}
+
+	public static LatencyHistogram histogram(String name) {
+		return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+	}
+
+	/**
+	 * Registers a value that is read whenever the metrics are reported,
+	 * replacing a gauge of the same name.
+	 */
+	public static void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	public static void removeGauge(String name) {
+		gauges.remove(name);
+	}
+
+	public static Map<String, Long> getCounters() {
+		Map<String, Long> values = new TreeMap<>();
+		counters.forEach((name, counter) -> values.put(name, counter.sum()));
+		return values;
+	}
+
+	public static Map<String, Long> getGauges() {
+		Map<String, Long> values = new TreeMap<>();
+		gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+		return values;
+	}
+
+	public static Map<String, LatencyHistogram> getHistograms() {
+		return new TreeMap<>(histograms);
+	}
+
+	/**
+	 * Clears the counters and histograms; gauges are current values and stay.
+	 */
+	public static void reset() {
+		counters.values().forEach(LongAdder::reset);
+		histograms.values().forEach(LatencyHistogram::reset);
+	}
+
+	/**
+	 * Makes the metrics readable through JMX, under
+	 * application:type=Metrics.
+	 */
+	public static void registerMBean() {
+		try {
+			ObjectName name = new ObjectName("application:type=Metrics");
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBeanImpl(), name);
+			}
+		} catch (JMException e) {
+			System.err.println("Failed to register the metrics MBean: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return all metrics as one line of JSON
+	 */
+	public static String toJson() {
+		StringBuilder json = new StringBuilder(1024);
+		json.append("{\"time\":").append(System.currentTimeMillis());
+		json.append(",\"counters\":{");
+		appendValues(json, getCounters());
+		json.append("},\"gauges\":{");
+		appendValues(json, getGauges());
+		json.append("},\"latency_ms\":{");
+		boolean first = true;
+		for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			json.append(first ? "" : ",").append('"').append(entry.getKey()).append("\":{");
+			json.append("\"count\":").append(histogram.getCount());
+			json.append(String.format(Locale.ROOT, ",\"mean\":%.3f,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"max\":%.3f",
+					histogram.getMeanNanos() / 1e6, histogram.getPercentileNanos(50) / 1e6,
+					histogram.getPercentileNanos(90) / 1e6, histogram.getPercentileNanos(99) / 1e6,
+					histogram.getMaxNanos() / 1e6));
+			json.append('}');
+			first = false;
+		}
+		return json.append("}}").toString();
+	}
+
+	private static void appendValues(StringBuilder json, Map<String, Long> values) {
+		boolean first = true;
+		for (Map.Entry<String, Long> entry : values.entrySet()) {
+			json.append(first ? "" : ",").append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+			first = false;
+		}
+	}
+
+	/**
+	 * @return all metrics, one per line
+	 */
+	public static String format() {
+		StringBuilder text = new StringBuilder(1024);
+		for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+			text.append(String.format("%-24s %s%n", entry.getKey(), entry.getValue()));
+		}
+		for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+			text.append(String.format("%-24s %d%n", entry.getKey(), entry.getValue()));
+		}
+		for (Map.Entry<String, Long> entry : getGauges().entrySet()) {
+			text.append(String.format("%-24s %d%n", entry.getKey(), entry.getValue()));
+		}
+		return text.toString();
+	}
+}
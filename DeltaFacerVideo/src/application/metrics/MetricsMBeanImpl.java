@@ -0,0 +1,41 @@
+package application.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+class MetricsMBeanImpl implements MetricsMXBean {
+
+	@Override
+	public Map<String, Long> getCounters() {
+		return Metrics.getCounters();
+	}
+
+	@Override
+	public Map<String, Long> getGauges() {
+		return Metrics.getGauges();
+	}
+
+	@Override
+	public Map<String, Double> getLatencyMillis() {
+		Map<String, Double> values = new TreeMap<>();
+		Metrics.getHistograms().forEach((name, histogram) -> {
+			values.put(name + ".count", (double) histogram.getCount());
+			values.put(name + ".mean", histogram.getMeanNanos() / 1e6);
+			values.put(name + ".p50", histogram.getPercentileNanos(50) / 1e6);
+			values.put(name + ".p90", histogram.getPercentileNanos(90) / 1e6);
+			values.put(name + ".p99", histogram.getPercentileNanos(99) / 1e6);
+			values.put(name + ".max", histogram.getMaxNanos() / 1e6);
+		});
+		return values;
+	}
+
+	@Override
+	public String getJson() {
+		return Metrics.toJson();
+	}
+
+	@Override
+	public void reset() {
+		Metrics.reset();
+	}
+}
@@ -0,0 +1,23 @@
+package application.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link Metrics}.
+ */
+public interface MetricsMXBean {
+
+	Map<String, Long> getCounters();
+
+	Map<String, Long> getGauges();
+
+	/**
+	 * @return count, mean and percentiles of every histogram, e.g.
+	 *         stage.detect.p99, in milliseconds
+	 */
+	Map<String, Double> getLatencyMillis();
+
+	String getJson();
+
+	void reset();
+}
@@ -0,0 +1,78 @@
+package application.metrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dumps the {@link Metrics} every few seconds on a daemon thread, as a JSON
+ * line appended to a file, or as text to standard out if there is no file.
+ */
+public class MetricsReporter extends Thread {
+
+	private final long intervalSeconds;
+	private final BufferedWriter out;
+
+	/**
+	 * @param file
+	 *            JSON lines file to append to, null or empty to print instead
+	 */
+	public MetricsReporter(long intervalSeconds, String file) throws IOException {
+		super("metrics-report");
+		setDaemon(true);
+		this.intervalSeconds = intervalSeconds;
+		this.out = file == null || file.isEmpty() ? null
+				: Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+						StandardOpenOption.APPEND);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				TimeUnit.SECONDS.sleep(intervalSeconds);
+				report();
+			}
+		} catch (InterruptedException e) {
+			// stopped by close()
+		}
+	}
+
+	public synchronized void report() {
+		if (out == null) {
+			System.out.print("Metrics:" + System.lineSeparator() + Metrics.format());
+			return;
+		}
+		try {
+			out.write(Metrics.toJson());
+			out.newLine();
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("Failed to write the metrics: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Stops the reporter after a last report.
+	 */
+	public void close() {
+		interrupt();
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		report();
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				System.err.println("Failed to close the metrics file: " + e.getMessage());
+			}
+		}
+	}
+}